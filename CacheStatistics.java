@@ -0,0 +1,114 @@
+
+
+import java.io.Serializable;
+
+/**
+ * Class CacheStatistics is a snapshot of the counters of the next hop cache
+ * of a GPSOffice, used to size the cache.
+ * 
+ * @author Shridhar Bhalekar
+ *
+ */
+public class CacheStatistics implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Number of cells the cache can hold
+	 */
+	private int capacity;
+
+	/**
+	 * Number of lookups answered from the cache
+	 */
+	private long hits;
+
+	/**
+	 * Number of lookups not answered from the cache
+	 */
+	private long misses;
+
+	/**
+	 * Number of valid decisions replaced by the decision of another cell
+	 */
+	private long evictions;
+
+	/**
+	 * Number of times the whole cache was invalidated
+	 */
+	private long invalidations;
+
+	/**
+	 * Creates a CacheStatistics object
+	 * 
+	 * @param capacity number of cells the cache can hold
+	 * @param hits number of lookups answered from the cache
+	 * @param misses number of lookups not answered from the cache
+	 * @param evictions number of valid decisions evicted
+	 * @param invalidations number of times the cache was invalidated
+	 */
+	public CacheStatistics(int capacity, long hits, long misses,
+			long evictions, long invalidations) {
+		this.capacity = capacity;
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+		this.invalidations = invalidations;
+	}
+
+	/**
+	 * Getter which returns the number of cells the cache can hold
+	 * @return capacity of the cache
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Getter which returns the number of lookups answered from the cache
+	 * @return number of hits
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Getter which returns the number of lookups not answered from the cache
+	 * @return number of misses
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Getter which returns the number of valid decisions evicted
+	 * @return number of evictions
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Getter which returns the number of times the cache was invalidated
+	 * @return number of invalidations
+	 */
+	public long getInvalidations() {
+		return invalidations;
+	}
+
+	/**
+	 * Returns the fraction of lookups answered from the cache
+	 * @return hit rate between 0 and 1
+	 */
+	public double getHitRate() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0.0 : (double) hits / lookups;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("capacity=%d hits=%d misses=%d hitRate=%.3f "
+				+ "evictions=%d invalidations=%d", capacity, hits, misses,
+				getHitRate(), evictions, invalidations);
+	}
+}
@@ -1,8 +1,17 @@
 
 
+import java.io.BufferedReader;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.rit.ds.RemoteEventListener;
 import edu.rit.ds.registry.NotBoundException;
@@ -24,6 +33,20 @@ import edu.rit.ds.registry.RegistryProxy;
  * 		 <name> - name of the GPSOffice
  * 		 <X>    - x coordinate of the destination
  * 		 <Y>    - y coordinate of the destination
+ * 
+ * To send many packages from one customer use the following command:
+ * <p>
+ * Usage: java Customer <host> <port> <name> <file> [<in flight>]
+ * <p>
+ * where <file>      - file of destinations, - to read them from the standard
+ * 		 			  input. Each line holds <X> <Y>, or <office> <X> <Y> to 
+ * 		 			  send the package through another office than <name>.
+ * 		 <in flight> - maximum number of packages on their way at a time
+ * 		 			  (default 64)
+ * 
+ * The customer then keeps a single registry proxy and a single listener for
+ * all the packages, matches the events to the packages by tracking number and
+ * exits once every package was delivered or lost.
  *  
  * @author Shridhar Bhalekar
  *
@@ -70,6 +93,44 @@ public class Customer {
 	 */
 	private RemoteEventListener<PacketEvent> remoteListner;
 
+	/**
+	 * File of destinations, - for the standard input, null when a single 
+	 * package is sent
+	 */
+	private String source;
+
+	/**
+	 * Maximum number of packages on their way at a time
+	 */
+	private int maxInFlight = 64;
+
+	/**
+	 * Permits of the packages on their way, one per package
+	 */
+	private Semaphore inFlight;
+
+	/**
+	 * Tracking numbers of the packages on their way
+	 */
+	private Set<Long> pending;
+
+	/**
+	 * Tracking numbers of the packages which finished before their tracking
+	 * number was returned to the customer
+	 */
+	private Set<Long> finishedEarly;
+
+	/**
+	 * Number of packages delivered and lost
+	 */
+	private AtomicInteger delivered, lost;
+
+	/**
+	 * Time in milliseconds to wait before sending again a package refused by
+	 * a busy office
+	 */
+	private static final long busyRetryDelay = 200;
+
 	/**
 	 * Constructs a new Customer object
 	 * 
@@ -77,8 +138,8 @@ public class Customer {
 	 * args[0] - registry server host name
 	 * args[1] - registry server port number
 	 * args[2] - GPSOffice name
-	 * args[3] - Destination X coordinate
-	 * args[4] - Destination Y coordinate
+	 * args[3] - Destination X coordinate, or file of destinations
+	 * args[4] - Destination Y coordinate, or maximum packages in flight
 	 * 
 	 * @param args Command Line arguments
 	 * 
@@ -91,9 +152,28 @@ public class Customer {
 	 */
 	public Customer(String[] args) {
 
-		if (args.length != 5) {
+		if (args.length == 4 || (args.length == 5 && !isNumber(args[3]))) {
+			this.hostName = args[0];
+			this.cityName = args[2];
+			this.portNumber = parseI(args[1], "port");
+			this.source = args[3];
+			if (args.length == 5) {
+				this.maxInFlight = parseI(args[4], "in flight");
+				if (maxInFlight < 1) {
+					throw new IllegalArgumentException(
+							"Invalid argument passed for in flight");
+				}
+			}
+			this.inFlight = new Semaphore(maxInFlight);
+			this.pending = new HashSet<Long>();
+			this.finishedEarly = new HashSet<Long>();
+			this.delivered = new AtomicInteger();
+			this.lost = new AtomicInteger();
+		} else if (args.length != 5) {
 			System.out
 					.println("Usage : java Customer <host> <port> <name> <X> <Y>");
+			System.out
+					.println("        java Customer <host> <port> <name> <file> [<in flight>]");
 			throw new IllegalArgumentException("Invalid number of arguments");
 		} else {
 			this.hostName = args[0];
@@ -126,6 +206,21 @@ public class Customer {
 		}
 	}
 
+	/**
+	 * Checks if a string is a number
+	 * 
+	 * @param value string to be checked
+	 * @return true if the string parses as a double
+	 */
+	private static boolean isNumber(String value) {
+		try {
+			Double.parseDouble(value);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
 	/**
 	 * Parses a string to Double
 	 * 
@@ -179,10 +274,15 @@ public class Customer {
 			@Override
 			public void report(long theSequenceNumber, PacketEvent theEvent)
 					throws RemoteException {
-				String message = theEvent.getMessage();
+				System.out.println(theEvent.getMessage());
+				if (source != null) {
+					if (theEvent.isFinal()) {
+						finished(theEvent);
+					}
+					return;
+				}
 				trackNumber = theEvent.getTrackNumber();
-				System.out.println(message);
-				if (message.contains("delivered") || message.contains("lost")) {
+				if (theEvent.isFinal()) {
 					System.exit(0);
 				}
 			}
@@ -193,12 +293,138 @@ public class Customer {
 		return remoteListner;
 	}
 
+	/**
+	 * Counts a package which was delivered or lost and frees its place among
+	 * the packages in flight
+	 * 
+	 * @param event final event of the package
+	 */
+	private void finished(PacketEvent event) {
+		if (event.getStatus() == PacketEvent.Status.DELIVERED) {
+			delivered.incrementAndGet();
+		} else {
+			lost.incrementAndGet();
+		}
+		synchronized (pending) {
+			if (!pending.remove(event.getTrackNumber())) {
+				// the office has not returned the tracking number yet
+				finishedEarly.add(event.getTrackNumber());
+				return;
+			}
+		}
+		inFlight.release();
+	}
+
+	/**
+	 * Records a package handed to an office as being on its way
+	 * 
+	 * @param track tracking number of the package
+	 */
+	private void sent(long track) {
+		synchronized (pending) {
+			if (!finishedEarly.remove(track)) {
+				pending.add(track);
+				return;
+			}
+		}
+		inFlight.release();
+	}
+
+	/**
+	 * Sends every package of the file of destinations through the offices,
+	 * keeping at most the maximum number of packages in flight, and waits 
+	 * until all of them were delivered or lost
+	 * 
+	 * @throws IOException
+	 * 				Thrown if the destinations cannot be read or the listener
+	 * 				cannot be exported
+	 * @throws InterruptedException
+	 * 				Thrown if the customer is interrupted while waiting
+	 */
+	private void sendAll() throws IOException, InterruptedException {
+		Map<String, GPSOfficeRef> offices = new HashMap<String, GPSOfficeRef>();
+		offices.put(cityName, getObject());
+		RemoteEventListener<PacketEvent> listener = createListener();
+
+		BufferedReader in = new BufferedReader(source.equals("-") ? 
+				new InputStreamReader(System.in) : new FileReader(source));
+		int sent = 0;
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.trim().split("\\s+");
+				if (fields[0].length() == 0 || fields[0].startsWith("#")) {
+					continue;
+				}
+				String name = fields.length == 3 ? fields[0] : cityName;
+				double x, y;
+				try {
+					if (fields.length != 2 && fields.length != 3) {
+						throw new IllegalArgumentException();
+					}
+					x = parseD(fields[fields.length - 2], "xValue");
+					y = parseD(fields[fields.length - 1], "yValue");
+				} catch (IllegalArgumentException e) {
+					System.out.println("Invalid destination: " + line);
+					continue;
+				}
+
+				GPSOfficeRef office = offices.get(name);
+				if (office == null) {
+					try {
+						office = (GPSOfficeRef) registryProxy.lookup(name);
+					} catch (NotBoundException e) {
+						System.out.println("Object with name " + name
+								+ " not bound in registry");
+						continue;
+					}
+					offices.put(name, office);
+				}
+
+				inFlight.acquire();
+				while (true) {
+					try {
+						sent(office.createSendPacket(x, y, listener));
+						sent++;
+						break;
+					} catch (OfficeBusyException e) {
+						Thread.sleep(busyRetryDelay);
+					} catch (RemoteException e) {
+						System.out.println("Package to (" + x + "," + y
+								+ ") could not be sent through " + name
+								+ " office");
+						offices.remove(name);
+						inFlight.release();
+						break;
+					}
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		// every permit is back once all the packages finished
+		inFlight.acquire(maxInFlight);
+		System.out.println(sent + " packages sent, " + delivered.get()
+				+ " delivered, " + lost.get() + " lost");
+	}
+
 	public static void main(String[] args) {
 		Customer c = null;
 		try {
 			c = new Customer(args);
+			if (c.source != null) {
+				c.sendAll();
+				System.exit(0);
+			}
 			GPSOfficeRef office = c.getObject();
-			office.createSendPacket(c.xValue, c.yValue, c.createListener());
+			c.trackNumber = office.createSendPacket(c.xValue, c.yValue, c
+					.createListener());
+		} catch (OfficeBusyException e) {
+			// originating Office cannot take more packets right now
+			System.out.println(c.cityName
+					+ " office is busy, please try again later");
+			System.exit(-1);
 		} catch (Exception e) {
 			// report packet loss if originating Office fails
 			if (c != null && c.trackNumber != -1) {
@@ -0,0 +1,228 @@
+
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class EventAggregator keeps the live metrics of the network from the
+ * stream of packet events received by the headquarters. Deliveries, losses
+ * and end to end latencies are counted in one second slots of a ring, so
+ * that the metrics of any window up to the length of the ring are the sum
+ * of its latest slots. The number of packets held by each office is kept as
+ * a gauge: an arrival at an office adds a packet, a departure, delivery or
+ * loss at the office removes it.
+ *
+ * The end to end latency of a package is the time from its arrival at the
+ * first office to its delivery, both as stamped by the offices.
+ *
+ * @author Shridhar Bhalekar
+ *
+ */
+public class EventAggregator {
+
+	/**
+	 * Length of a slot in milliseconds
+	 */
+	private static final long slotLength = 1000;
+
+	/**
+	 * Time in milliseconds after which a package which did not finish is no
+	 * longer tracked
+	 */
+	private static final long pendingTimeout = 600000;
+
+	/**
+	 * Counts of one slot of the ring
+	 */
+	private static final class Slot {
+
+		/**
+		 * Number of the second counted by the slot
+		 */
+		private long second = -1;
+
+		private long delivered;
+
+		private long lost;
+
+		private final LatencyHistogram latencies = new LatencyHistogram();
+	}
+
+	/**
+	 * Ring of slots indexed by second modulo the number of slots
+	 */
+	private final Slot[] slots;
+
+	/**
+	 * Number of packets held by each office keyed by the office name
+	 */
+	private final Map<String, long[]> inFlight;
+
+	/**
+	 * Times of the first arrival of the packages which did not finish yet,
+	 * keyed by tracking number in the order they started
+	 */
+	private final LinkedHashMap<Long, Long> started;
+
+	/**
+	 * Store of the events, used to find the start of a package whose first
+	 * arrival was not seen by the aggregator
+	 */
+	private final EventStore store;
+
+	/**
+	 * Source of the current time of the slots
+	 */
+	private final TimeSource clock;
+
+	/**
+	 * Creates a new EventAggregator
+	 *
+	 * @param maxWindow longest window in seconds which can be queried
+	 * @param store store of the events, may be null
+	 */
+	public EventAggregator(int maxWindow, EventStore store) {
+		this(maxWindow, store, TimeSource.SYSTEM);
+	}
+
+	/**
+	 * Creates a new EventAggregator whose slots follow the given clock
+	 *
+	 * @param maxWindow longest window in seconds which can be queried
+	 * @param store store of the events, may be null
+	 * @param clock source of the current time
+	 */
+	public EventAggregator(int maxWindow, EventStore store,
+			final TimeSource clock) {
+		if (maxWindow < 1) {
+			throw new IllegalArgumentException("Invalid window " + maxWindow);
+		}
+		this.slots = new Slot[maxWindow];
+		for (int i = 0; i < maxWindow; i++) {
+			slots[i] = new Slot();
+		}
+		this.inFlight = new HashMap<String, long[]>();
+		this.store = store;
+		this.clock = clock;
+		this.started = new LinkedHashMap<Long, Long>(1024, 0.75f, false) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+				return eldest.getValue() < clock.currentTimeMillis()
+						- pendingTimeout;
+			}
+		};
+	}
+
+	/**
+	 * Returns the slot of the current second, cleared if it still holds the
+	 * counts of an older second
+	 *
+	 * @param now current time in milliseconds
+	 * @return slot of the current second
+	 */
+	private Slot current(long now) {
+		long second = now / slotLength;
+		Slot slot = slots[(int) (second % slots.length)];
+		if (slot.second != second) {
+			slot.second = second;
+			slot.delivered = 0;
+			slot.lost = 0;
+			slot.latencies.reset();
+		}
+		return slot;
+	}
+
+	/**
+	 * Adds an event to the metrics
+	 * @param event event received from an office
+	 */
+	public synchronized void record(PacketEvent event) {
+		long track = event.getTrackNumber();
+		long[] held = inFlight.get(event.getOffice());
+		if (held == null) {
+			held = new long[1];
+			inFlight.put(event.getOffice(), held);
+		}
+
+		switch (event.getStatus()) {
+		case ARRIVED:
+			held[0]++;
+			if (!started.containsKey(track)) {
+				started.put(track, event.getTime());
+			}
+			break;
+		case DEPARTED:
+			held[0]--;
+			break;
+		case DELIVERED:
+			held[0]--;
+			Slot slot = current(clock.currentTimeMillis());
+			slot.delivered++;
+			long start = startOf(track);
+			if (start >= 0) {
+				slot.latencies.record(event.getTime() - start);
+			}
+			break;
+		case LOST:
+			held[0]--;
+			current(clock.currentTimeMillis()).lost++;
+			started.remove(track);
+			break;
+		}
+	}
+
+	/**
+	 * Returns the time a package arrived at its first office and stops
+	 * tracking the package
+	 *
+	 * @param track tracking number of the package
+	 * @return time in milliseconds, -1 if it is not known
+	 */
+	private long startOf(long track) {
+		Long start = started.remove(track);
+		if (start != null) {
+			return start;
+		}
+		if (store != null) {
+			List<PacketEvent> trail = store.getTrail(track);
+			if (!trail.isEmpty()) {
+				return trail.get(0).getTime();
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the metrics of the latest seconds
+	 *
+	 * @param window length of the window in seconds
+	 * @return snapshot of the metrics
+	 */
+	public synchronized NetworkStatistics getStatistics(int window) {
+		if (window < 1 || window > slots.length) {
+			throw new IllegalArgumentException("Invalid window " + window
+					+ ", must be between 1 and " + slots.length);
+		}
+		long now = clock.currentTimeMillis() / slotLength;
+		long delivered = 0, lost = 0;
+		LatencyHistogram latencies = new LatencyHistogram();
+		for (Slot slot : slots) {
+			if (slot.second > now - window && slot.second <= now) {
+				delivered += slot.delivered;
+				lost += slot.lost;
+				latencies.add(slot.latencies);
+			}
+		}
+		Map<String, Long> held = new HashMap<String, Long>();
+		for (Map.Entry<String, long[]> entry : inFlight.entrySet()) {
+			held.put(entry.getKey(), entry.getValue()[0]);
+		}
+		return new NetworkStatistics(window, delivered, lost, latencies,
+				held);
+	}
+}
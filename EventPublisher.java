@@ -0,0 +1,130 @@
+
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import edu.rit.ds.Lease;
+import edu.rit.ds.RemoteEventGenerator;
+import edu.rit.ds.RemoteEventListener;
+
+/**
+ * Class EventPublisher collects the packet events generated by a GPSOffice
+ * for the headquarters and reports them in batches. Publishing an event only
+ * puts it in a queue, the queue is drained by flush which is called 
+ * periodically by the office away from the packet processing path.
+ * 
+ * @author Shridhar Bhalekar
+ *
+ */
+public class EventPublisher {
+
+	/**
+	 * Event generator reporting the batches to the headquarters
+	 */
+	private RemoteEventGenerator<PacketEventBatch> generator;
+
+	/**
+	 * Listeners of the same process which are called directly
+	 */
+	private List<RemoteEventListener<PacketEventBatch>> localListeners;
+
+	/**
+	 * Events waiting to be reported
+	 */
+	private ConcurrentLinkedQueue<PacketEvent> pending;
+
+	/**
+	 * Maximum number of events reported in one batch
+	 */
+	private int maxBatchSize;
+
+	/**
+	 * True while a flush is draining the queue
+	 */
+	private AtomicBoolean flushing;
+
+	/**
+	 * Creates a new EventPublisher
+	 * 
+	 * @param maxBatchSize maximum number of events reported in one batch
+	 */
+	public EventPublisher(int maxBatchSize) {
+		this.generator = new RemoteEventGenerator<PacketEventBatch>();
+		this.localListeners = 
+			new CopyOnWriteArrayList<RemoteEventListener<PacketEventBatch>>();
+		this.pending = new ConcurrentLinkedQueue<PacketEvent>();
+		this.maxBatchSize = maxBatchSize;
+		this.flushing = new AtomicBoolean(false);
+	}
+
+	/**
+	 * Adds a listener which will receive the batches of events
+	 * 
+	 * @param listener remote event listener of the headquarters
+	 * 
+	 * @return lease of the listener
+	 * 
+	 * @throws RemoteException
+	 * 				Thrown if remote error encountered
+	 */
+	public Lease addListener(RemoteEventListener<PacketEventBatch> listener)
+			throws RemoteException {
+		return generator.addListener(listener);
+	}
+
+	/**
+	 * Adds a listener of the same process which receives the batches of 
+	 * events with a direct call instead of through the generator
+	 * 
+	 * @param listener listener of the batches
+	 */
+	public void addLocalListener(
+			RemoteEventListener<PacketEventBatch> listener) {
+		localListeners.add(listener);
+	}
+
+	/**
+	 * Queues an event to be reported with the next batch
+	 * 
+	 * @param event event to be reported
+	 */
+	public void publish(PacketEvent event) {
+		pending.offer(event);
+	}
+
+	/**
+	 * Reports all the queued events, at most maxBatchSize events per batch.
+	 * Concurrent calls return right away while another flush is in progress.
+	 */
+	public void flush() {
+		if (!flushing.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			while (!pending.isEmpty()) {
+				List<PacketEvent> events = new ArrayList<PacketEvent>();
+				PacketEvent event;
+				while (events.size() < maxBatchSize
+						&& (event = pending.poll()) != null) {
+					events.add(event);
+				}
+				PacketEventBatch batch = new PacketEventBatch(events);
+				generator.reportEvent(batch);
+				for (RemoteEventListener<PacketEventBatch> listener : 
+						localListeners) {
+					try {
+						listener.report(0, batch);
+					} catch (RemoteException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		} finally {
+			flushing.set(false);
+		}
+	}
+}
@@ -0,0 +1,355 @@
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Class EventStore keeps the packet events received by the headquarters in
+ * an append only log of segment files, so that the history of any package
+ * can be queried. Each record points to the previous record of the same
+ * tracking number and an in memory hash index maps a tracking number to its
+ * latest record, so the trail of a package is read by following its chain
+ * without scanning the log. The index is rebuilt from the segments when the
+ * store is opened.
+ *
+ * A record is laid out as a type byte, the tracking number, the location of
+ * the previous record of the package, the time of the event, the
+ * destination, the length of the office name and the office name. The type
+ * byte holds the status of the event and is written last, a zero type byte
+ * marks the end of the records of a segment.
+ *
+ * @author Shridhar Bhalekar
+ *
+ */
+public class EventStore {
+
+	/**
+	 * Size of the fixed part of a record
+	 */
+	private static final int headerSize = 1 + 8 + 8 + 8 + 8 + 8 + 2;
+
+	/**
+	 * Location of no record
+	 */
+	private static final long NONE = -1L;
+
+	/**
+	 * Encoding of the office names
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Statuses of the events indexed by their type byte minus one
+	 */
+	private static final PacketEvent.Status[] statuses = PacketEvent.Status
+			.values();
+
+	/**
+	 * Primitive hash index from a tracking number to the location of its
+	 * latest record
+	 */
+	private static final class TrackIndex {
+
+		/**
+		 * Tracking numbers of the slots
+		 */
+		private long[] keys;
+
+		/**
+		 * Locations of the latest records plus one, zero for a free slot
+		 */
+		private long[] heads;
+
+		/**
+		 * Number of used slots
+		 */
+		private int size;
+
+		private TrackIndex(int capacity) {
+			keys = new long[capacity];
+			heads = new long[capacity];
+		}
+
+		/**
+		 * Returns the slot of a tracking number
+		 *
+		 * @param key tracking number
+		 * @return slot holding the key or the free slot where it belongs
+		 */
+		private int slot(long key) {
+			int mask = keys.length - 1;
+			// mix all 64 bits into the low bits kept by the mask
+			long hash = key * 0x9E3779B97F4A7C15L;
+			hash ^= hash >>> 32;
+			hash *= 0xC2B2AE3D27D4EB4FL;
+			hash ^= hash >>> 29;
+			int index = (int) hash & mask;
+			while (heads[index] != 0 && keys[index] != key) {
+				index = (index + 1) & mask;
+			}
+			return index;
+		}
+
+		/**
+		 * Returns the location of the latest record of a tracking number
+		 *
+		 * @param key tracking number
+		 * @return location, NONE if the tracking number is unknown
+		 */
+		private long get(long key) {
+			return heads[slot(key)] - 1;
+		}
+
+		/**
+		 * Sets the location of the latest record of a tracking number
+		 *
+		 * @param key tracking number
+		 * @param location location of the record
+		 */
+		private void put(long key, long location) {
+			int index = slot(key);
+			if (heads[index] == 0) {
+				if (2 * (size + 1) > keys.length) {
+					grow();
+					index = slot(key);
+				}
+				size++;
+				keys[index] = key;
+			}
+			heads[index] = location + 1;
+		}
+
+		/**
+		 * Doubles the number of slots
+		 */
+		private void grow() {
+			long[] oldKeys = keys;
+			long[] oldHeads = heads;
+			keys = new long[oldKeys.length * 2];
+			heads = new long[oldHeads.length * 2];
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldHeads[i] != 0) {
+					int index = slot(oldKeys[i]);
+					keys[index] = oldKeys[i];
+					heads[index] = oldHeads[i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Directory holding the segment files
+	 */
+	private final File directory;
+
+	/**
+	 * Size in bytes of a segment
+	 */
+	private final int segmentSize;
+
+	/**
+	 * Mapped segments, the last one receives the new records
+	 */
+	private final List<MappedByteBuffer> segments;
+
+	/**
+	 * Index of the latest record of each tracking number
+	 */
+	private final TrackIndex index;
+
+	/**
+	 * Number of records of the store
+	 */
+	private long count;
+
+	/**
+	 * Opens the store in a directory, creating it if needed
+	 *
+	 * @param directory directory holding the segment files
+	 * @param segmentSize size in bytes of a segment
+	 *
+	 * @throws IOException
+	 * 				Thrown if the segments cannot be read or created
+	 */
+	public EventStore(File directory, int segmentSize) throws IOException {
+		if (segmentSize < headerSize + 1) {
+			throw new IllegalArgumentException("Invalid segment size "
+					+ segmentSize);
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create directory " + directory);
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.segments = new ArrayList<MappedByteBuffer>();
+		this.index = new TrackIndex(1024);
+
+		String[] names = directory.list();
+		Arrays.sort(names);
+		for (String name : names) {
+			if (name.startsWith("segment-") && name.endsWith(".log")) {
+				scan(open(new File(directory, name)));
+			}
+		}
+		if (segments.isEmpty()) {
+			open(segmentFile(0));
+		}
+	}
+
+	/**
+	 * Returns the file of a segment
+	 * @param number number of the segment
+	 * @return segment file
+	 */
+	private File segmentFile(int number) {
+		return new File(directory, String.format("segment-%06d.log", number));
+	}
+
+	/**
+	 * Maps a segment file and adds it to the segments
+	 *
+	 * @param file segment file
+	 * @return mapped segment
+	 * @throws IOException
+	 */
+	private MappedByteBuffer open(File file) throws IOException {
+		RandomAccessFile segment = new RandomAccessFile(file, "rw");
+		try {
+			long size = Math.max(segment.length(), segmentSize);
+			MappedByteBuffer buffer = segment.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, size);
+			segments.add(buffer);
+			return buffer;
+		} finally {
+			// the mapping stays valid once the file is closed
+			segment.close();
+		}
+	}
+
+	/**
+	 * Reads the records of an existing segment into the index and leaves
+	 * the segment positioned after its last record
+	 *
+	 * @param buffer mapped segment
+	 */
+	private void scan(MappedByteBuffer buffer) {
+		long segment = segments.size() - 1;
+		int position = 0;
+		while (position + headerSize <= buffer.limit()) {
+			int type = buffer.get(position);
+			if (type < 1 || type > statuses.length) {
+				break;
+			}
+			int length = buffer.getShort(position + headerSize - 2);
+			if (position + headerSize + length > buffer.limit()) {
+				break;
+			}
+			index.put(buffer.getLong(position + 1), (segment << 32)
+					| position);
+			count++;
+			position += headerSize + length;
+		}
+		buffer.position(position);
+	}
+
+	/**
+	 * Appends an event to the store
+	 *
+	 * @param event event received from an office
+	 *
+	 * @throws IOException
+	 * 				Thrown if a new segment cannot be created
+	 */
+	public synchronized void append(PacketEvent event) throws IOException {
+		byte[] office = event.getOffice().getBytes(UTF8);
+		int length = Math.min(office.length, Short.MAX_VALUE);
+		MappedByteBuffer buffer = segments.get(segments.size() - 1);
+		// keep room for the end marker after the record
+		if (buffer.remaining() < headerSize + length + 1) {
+			buffer.force();
+			buffer = open(segmentFile(segments.size()));
+		}
+
+		long track = event.getTrackNumber();
+		int position = buffer.position();
+		buffer.put((byte) 0);
+		buffer.putLong(track);
+		buffer.putLong(index.get(track));
+		buffer.putLong(event.getTime());
+		buffer.putDouble(event.getxValue());
+		buffer.putDouble(event.getyValue());
+		buffer.putShort((short) length);
+		buffer.put(office, 0, length);
+		buffer.put(position, (byte) (event.getStatus().ordinal() + 1));
+
+		index.put(track, ((long) (segments.size() - 1) << 32) | position);
+		count++;
+	}
+
+	/**
+	 * Returns the events of a package ordered by the time they were
+	 * generated
+	 *
+	 * @param trackNumber tracking number of the package
+	 *
+	 * @return events of the package, empty if the package is unknown
+	 */
+	public synchronized List<PacketEvent> getTrail(long trackNumber) {
+		List<PacketEvent> trail = new ArrayList<PacketEvent>();
+		long location = index.get(trackNumber);
+		while (location != NONE) {
+			MappedByteBuffer buffer = segments.get((int) (location >>> 32));
+			int position = (int) location;
+			int length = buffer.getShort(position + headerSize - 2);
+			byte[] office = new byte[length];
+			for (int i = 0; i < length; i++) {
+				office[i] = buffer.get(position + headerSize + i);
+			}
+			trail.add(new PacketEvent(statuses[buffer.get(position) - 1],
+					new String(office, UTF8), trackNumber, buffer
+							.getDouble(position + 25), buffer
+							.getDouble(position + 33), buffer
+							.getLong(position + 17)));
+			location = buffer.getLong(position + 9);
+		}
+		Collections.reverse(trail);
+		// events of different offices may reach the headquarters out of order
+		Collections.sort(trail, new Comparator<PacketEvent>() {
+			@Override
+			public int compare(PacketEvent a, PacketEvent b) {
+				return a.getTime() < b.getTime() ? -1 : a.getTime() > b
+						.getTime() ? 1 : 0;
+			}
+		});
+		return trail;
+	}
+
+	/**
+	 * Returns the number of events in the store
+	 * @return number of events
+	 */
+	public synchronized long size() {
+		return count;
+	}
+
+	/**
+	 * Writes the records of the segment receiving new records to the disk.
+	 * Full segments were written when the next segment was started.
+	 */
+	public void force() {
+		MappedByteBuffer buffer;
+		synchronized (this) {
+			buffer = segments.get(segments.size() - 1);
+		}
+		buffer.force();
+	}
+}
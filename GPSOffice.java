@@ -1,13 +1,29 @@
 
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.ObjectName;
 
 import edu.rit.ds.Lease;
 import edu.rit.ds.RemoteEventGenerator;
@@ -20,21 +36,32 @@ import edu.rit.ds.registry.RegistryProxy;
 
 /**
  * Class GPSOffice represents a distributed GPSOffice in a Geographic Package
- * System. Each GPSOffice will have maximum of three neighbors and it's 
- * responsibility is to deliver the incoming customer package. It will either 
- * forward packet directly to destination address or to one of it's neighbor.
+ * System. Each GPSOffice keeps its nearest offices as neighbors, three by 
+ * default, and it's responsibility is to deliver the incoming customer 
+ * package. It will either forward packet directly to destination address or
+ * to one of it's neighbor.
  * The forwarding logic is if destination location is closer to current office
  * as compared to the distance of destination with the neighbors then the 
  * current office will deliver the packet directly to destination, otherwise it
  * will find out which one of it's current neighbors is closest to destination 
  * and will forward packet to that destination.    
  * 
+ * Each office also collects the neighbor graph of the offices around it and
+ * keeps a routing table of the shortest paths. When the table knows the 
+ * destination area the packet follows the path with the fewest hops to the 
+ * office nearest to the destination, otherwise the forwarding logic above 
+ * is used.
+ * 
+ * The office counts its packets and times its hot path in OfficeMetrics,
+ * which is read with JMX under GPSOffice:type=OfficeMetrics or remotely 
+ * through getMetrics.
+ * 
  * <b>This class uses the RIT Computer Science Library<b>
  * 
  * To register a single GPSOffice object with the registry use the following 
  * command
  * <p>
- * Usage : java Start GPSOffice <host> <port> <name> <X> <Y>
+ * Usage : java Start GPSOffice <host> <port> <name> <X> <Y> [<option>=<value> ...]
  * <p>
  * where <host> - host name of the registry server
  * 		 <port> - port number to which registry server is listening.
@@ -42,6 +69,36 @@ import edu.rit.ds.registry.RegistryProxy;
  * 		 <X>    - x coordinate of the current GPS Office
  * 		 <Y>    - y coordinate of the current GPS Office
  * 
+ * and the optional settings are
+ * 		 delay=<ms> - time taken by the office to process a packet 
+ * 		 			  (default 3000)
+ * 		 capacity=<n> - maximum number of packets held by the office, 
+ * 		 			  further packets are rejected (default 1000)
+ * 		 workers=<n> - number of worker threads of the office (default 8)
+ * 		 threads=platform|virtual - runs the work of the packets on the 
+ * 		 			  fixed pool of worker threads or on a virtual thread
+ * 		 			  per task, when the JDK has them (default platform)
+ * 		 neighbors=<n> - number of nearest offices kept as neighbors 
+ * 		 			  (default 3)
+ * 		 radius=<n> - number of hops of the neighbor graph collected for
+ * 		 			  the routing table, at most 3, 0 disables the table 
+ * 		 			  (default 2)
+ * 		 retries=<n> - number of times a batch is sent again to a failed
+ * 		 			  neighbor before failing over (default 2)
+ * 		 journal=<file> - write ahead journal of the packets held by the
+ * 		 			  office, replayed when the office restarts, kept in the
+ * 		 			  files <file>.<n> and durable across a crash of the
+ * 		 			  office process but not of the machine (default none)
+ * 		 cache=<n> - number of destination cells whose routing decision is
+ * 		 			  cached, 0 disables the cache (default 4096)
+ * 		 cell=<size> - side of a destination cell of the cache (default 1)
+ * 
+ * The time a call to a neighbor may wait for its response is a setting of
+ * the RMI runtime shared by every object of the process, so it is given
+ * once on the command line of the process, as client.bat does:
+ * <p>
+ * java -Dsun.rmi.transport.tcp.responseTimeout=5000 Start GPSOffice ...
+ * 
  * @author Shridhar Bhalekar
  *
  */
@@ -78,6 +135,11 @@ public class GPSOffice implements GPSOfficeRef {
 	 */
 	private RegistryProxy registryProxy;
 	
+	/**
+	 * Shared spatial index of the offices, null if no index is bound
+	 */
+	private volatile OfficeIndexRef officeIndex;
+
 	/**
 	 * Event listener on the Registry Server 
 	 */
@@ -89,25 +151,289 @@ public class GPSOffice implements GPSOfficeRef {
 	private RegistryEventFilter registryEventFilter;
 	
 	/**
-	 * Event generator on remote event listeners
+	 * Publisher reporting batches of packet events to the headquarters
+	 */
+	private EventPublisher eventPublisher;
+
+	/**
+	 * Time in milliseconds between two batches of events to the headquarters
 	 */
-	private RemoteEventGenerator<PacketEvent> remoteGenerator;
+	private static final long eventFlushInterval = 200;
+
+	/**
+	 * Maximum number of events reported to the headquarters in one batch
+	 */
+	private static final int maxEventBatchSize = 256;
 	
 	/**
-	 * List which will store maximum of three neighbors of the current GPSOffice
+	 * Event generators for the customers keyed by their listeners
+	 */
+	private GeneratorCache customerGenerators;
+
+	/**
+	 * Time in milliseconds after which an unused customer generator is 
+	 * evicted
+	 */
+	private static final long generatorIdleTimeout = 30000;
+
+	/**
+	 * Time in milliseconds after which a customer generator is replaced
+	 */
+	private static final long generatorMaxAge = 300000;
+
+	/**
+	 * Offices known to the current office, the candidates from which the 
+	 * neighbors are chosen when no office index is bound
+	 */
+	private SpatialGrid knownOffices;
+
+	/**
+	 * Name and coordinates of other offices keyed by their references, so
+	 * that they are fetched only once per office
+	 */
+	private ConcurrentMap<GPSOfficeRef, NeighborStorage> descriptors;
+
+	/**
+	 * Name, coordinates and reference of the current office
+	 */
+	private volatile NeighborStorage descriptor;
+
+	/**
+	 * Side of a cell of the grid of known offices
+	 */
+	private static final double knownOfficesCellSize = 10.0;
+
+	/**
+	 * Snapshot of the nearest neighbors of the current GPSOffice. 
+	 * Routing reads the published snapshot without locking, changes build a
+	 * new snapshot and publish it with compareAndSet.
 	 */
-	private List<NeighborStorage> neighbors;
+	private AtomicReference<NeighborTable> neighbors;
 	
+	/**
+	 * Shortest path routing table, null until the neighbor graph has been 
+	 * collected
+	 */
+	private volatile RoutingTable routingTable;
+
+	/**
+	 * Number of hops of the neighbor graph collected for the routing table
+	 */
+	private int routingRadius = 2;
+
+	/**
+	 * Largest number of hops of the neighbor graph collected for the routing
+	 * table. Each collection costs a remote call per office within the 
+	 * radius, which grows with the number of neighbors to the power of the
+	 * radius.
+	 */
+	private static final int maxRoutingRadius = 3;
+
+	/**
+	 * Number of hops after which a packet is only routed to closer 
+	 * neighbors. The tables never send a packet in a circle while they agree,
+	 * a packet taking longer than any route of a real network is circling 
+	 * between offices whose tables disagree for a moment.
+	 */
+	private static final int maxTableHops = 256;
+
+	/**
+	 * Routing decisions cached per destination cell, null if disabled
+	 */
+	private NextHopCache nextHopCache;
+
+	/**
+	 * Number of destination cells held by the next hop cache
+	 */
+	private int cacheCapacity = 4096;
+
+	/**
+	 * Side of a destination cell of the next hop cache
+	 */
+	private double cacheCellSize = 1.0;
+
+	/**
+	 * Time in milliseconds between two collections of the neighbor graph
+	 */
+	private static final long routingRefreshInterval = 30000;
+
+	/**
+	 * Time in milliseconds before the first collection of the neighbor graph
+	 */
+	private static final long routingInitialDelay = 5000;
+
 	/**
 	 * Maximum allowed neighbors
 	 */
-	private static final int maxNeighbors = 3;
+	private int maxNeighbors = 3;
 	
 	/**
-	 * Thread pool executor for concurrency
+	 * Fixed pool of worker threads for concurrency
 	 */
 	private ExecutorService executor;
 
+	/**
+	 * Timer which releases packets after the processing delay and flushes 
+	 * the outbound queues after the batch delay
+	 */
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Scheduler of the simulation the office is part of, null if the office
+	 * runs on its own threads. A simulated office shares the scheduler as 
+	 * its worker pool and timer and reports its events with direct calls.
+	 */
+	private SimulationScheduler simulation;
+
+	/**
+	 * Source of the time stamps of the events and tracking numbers
+	 */
+	private TimeSource clock = TimeSource.SYSTEM;
+
+	/**
+	 * Outbound queues of packets waiting to be forwarded, one per neighbor
+	 * keyed by the name of the neighbor
+	 */
+	private ConcurrentMap<String, OutboundQueue> outbound;
+
+	/**
+	 * Time in milliseconds the office takes to process a received packet
+	 */
+	private long processingDelay = 3000;
+
+	/**
+	 * Maximum number of packets the office holds at a time, counting the 
+	 * packets waiting for the processing delay and those waiting in the
+	 * outbound queues
+	 */
+	private int ingressCapacity = 1000;
+
+	/**
+	 * Number of worker threads which route and forward the packets
+	 */
+	private int workerCount = 8;
+
+	/**
+	 * True to run each task of the office on its own virtual thread instead
+	 * of the fixed pool of worker threads
+	 */
+	private boolean virtualThreads = false;
+
+	/**
+	 * Admission control of the ingress queue, one permit per packet held
+	 */
+	private Semaphore ingress;
+
+	/**
+	 * Counters, gauges and hot path times of the office
+	 */
+	private OfficeMetrics metrics;
+
+	/**
+	 * Hop counts of the packets recently taken from neighbors keyed by 
+	 * tracking number, used to recognize a batch sent again after its 
+	 * response was lost
+	 */
+	private Map<Long, Integer> recentPackets;
+
+	/**
+	 * Number of packets remembered to recognize those sent again
+	 */
+	private static final int recentCapacity = 65536;
+
+	/**
+	 * Time in milliseconds an outbound queue waits before sending again the
+	 * packets refused by a busy neighbor
+	 */
+	private static final long busyBackoff = 500;
+
+	/**
+	 * Number of times in a row a busy neighbor may refuse a batch before its
+	 * packets fail over to other neighbors. Two full offices sending to each
+	 * other would otherwise wait for each other forever.
+	 */
+	private static final int busyRetries = 10;
+
+	/**
+	 * Number of times a failed batch is sent again to the same neighbor 
+	 * before its packets fail over to other neighbors
+	 */
+	private int forwardRetries = 2;
+
+	/**
+	 * Time in milliseconds between two attempts to send a failed batch
+	 */
+	private static final long retryDelay = 200;
+
+	/**
+	 * Number of consecutive failed calls which opens the circuit of a 
+	 * neighbor
+	 */
+	private static final int failureThreshold = 3;
+
+	/**
+	 * Time in milliseconds the circuit of a neighbor stays open before the
+	 * neighbor is probed
+	 */
+	private static final long openPeriod = 1000;
+
+	/**
+	 * Time in milliseconds between two checks for neighbors to be probed
+	 */
+	private static final long probeInterval = 250;
+
+	/**
+	 * Liveness and circuit breakers of the neighbors keyed by their names
+	 */
+	private ConcurrentMap<String, NeighborHealth> health;
+
+	/**
+	 * Write ahead journal of the packets held by the office, null if the
+	 * office runs without a journal
+	 */
+	private PacketJournal journal;
+
+	/**
+	 * File of the journal, null to run without a journal
+	 */
+	private String journalPath;
+
+	/**
+	 * Minimum size in bytes of the mapped region of the journal
+	 */
+	private static final int journalSize = 16 * 1024 * 1024;
+
+	/**
+	 * Time in milliseconds between two writes of the journal to the disk
+	 */
+	private static final long journalSyncInterval = 50;
+
+	/**
+	 * Latest tracking number given to a packet created by the office, 
+	 * without the bits of the office
+	 */
+	private AtomicLong lastTrackingNumber;
+
+	/**
+	 * Number of low bits of a tracking number identifying the office
+	 */
+	private static final int trackingOfficeBits = 20;
+
+	/**
+	 * JMX domain of the metrics of the offices
+	 */
+	private static final String metricsDomain = "GPSOffice";
+
+	/**
+	 * Maximum number of packets forwarded to a neighbor in one batch
+	 */
+	private static final int maxBatchSize = 16;
+
+	/**
+	 * Maximum time in milliseconds a packet waits in an outbound queue
+	 */
+	private static final long batchDelay = 100;
+
 	/**
 	 * Constructs a new GPSOffice object
 	 * 
@@ -117,6 +443,7 @@ public class GPSOffice implements GPSOfficeRef {
 	 * args[2] - GPSOffice name
 	 * args[3] - GPSOffice X coordinate
 	 * args[4] - GPSOffice Y coordinate
+	 * args[5..] - optional settings of the form <option>=<value>
 	 * 
 	 * @param args Command Line arguments
 	 * 
@@ -129,9 +456,9 @@ public class GPSOffice implements GPSOfficeRef {
 	 */
 	public GPSOffice(String[] args) throws IOException {
 		
-		if (args.length != 5) {
+		if (args.length < 5) {
 			System.out
-					.println("Usage: java Start GPSOffice <host> <port> <name> <X> <Y> ");
+					.println("Usage: java Start GPSOffice <host> <port> <name> <X> <Y> [<option>=<value> ...]");
 			throw new IllegalArgumentException("Invalid number of arguments");
 		}
 		hostName = args[0];
@@ -139,19 +466,35 @@ public class GPSOffice implements GPSOfficeRef {
 		portNumber = parseInt(args[1], "portNumber");
 		xValue = parseDouble(args[3], "X co-ordinate");
 		yValue = parseDouble(args[4], "Y co-ordinate");
-		neighbors = new ArrayList<NeighborStorage>();
-		
+		for (int i = 5; i < args.length; i++) {
+			parseOption(args[i]);
+		}
+		initialize();
+		if (journalPath != null) {
+			try {
+				openJournal();
+			} catch (IOException e) {
+				shutdownExecutors();
+				throw e;
+			}
+		}
+
 		// initializing the registry proxy
 		try {
 			registryProxy = new RegistryProxy(hostName, portNumber);
 		} catch (Exception e) {
+			shutdownExecutors();
 			throw new IllegalArgumentException("Cannot connact to " + hostName
 					+ ":" + portNumber);
 		}
+		try {
+			checkTrackingPrefix();
+		} catch (IllegalArgumentException e) {
+			shutdownExecutors();
+			throw e;
+		}
 		UnicastRemoteObject.exportObject(this, 0);
 		
-		// remote event generator for the headquarter
-		remoteGenerator = new RemoteEventGenerator<PacketEvent>();
 		try {
 			registryProxy.bind(cityName, this);
 		} catch (AlreadyBoundException abe) {
@@ -159,6 +502,7 @@ public class GPSOffice implements GPSOfficeRef {
 				UnicastRemoteObject.unexportObject(this, true);
 			} catch (NoSuchObjectException nso1) {
 			}
+			shutdownExecutors();
 			throw new IllegalArgumentException("GPS Office with " + cityName
 					+ " already bound to the registry");
 		} catch (RemoteException re) {
@@ -166,6 +510,7 @@ public class GPSOffice implements GPSOfficeRef {
 				UnicastRemoteObject.unexportObject(this, true);
 			} catch (NoSuchObjectException nso2) {
 			}
+			shutdownExecutors();
 			throw new IllegalArgumentException(
 					"Cannot connect to registry server at " + hostName + ":"
 							+ portNumber);
@@ -177,17 +522,40 @@ public class GPSOffice implements GPSOfficeRef {
 			e.printStackTrace();
 		}
 
+		// an office started meanwhile may have bound a name of the same prefix
+		try {
+			checkTrackingPrefix();
+		} catch (IllegalArgumentException e) {
+			try {
+				UnicastRemoteObject.unexportObject(this, true);
+			} catch (NoSuchObjectException nso3) {
+			}
+			shutdownExecutors();
+			throw e;
+		}
+
 		updateNeighbors();
 		registryEventListener = new RegistryEventListener() {
 			@Override
 			public void report(long arg0, RegistryEvent event)
 					throws RemoteException {
+				final String name = event.objectName();
+				if (name == null || name.equals(cityName)) {
+					return;
+				}
 
 				if (event.objectWasBound()) {
 					executor.execute(new Runnable() {
 						@Override
 						public void run() {
-							updateNeighbors();
+							officeBound(name);
+						}
+					});
+				} else if (event.objectWasUnbound()) {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							officeUnbound(name);
 						}
 					});
 				}
@@ -202,126 +570,499 @@ public class GPSOffice implements GPSOfficeRef {
 		registryEventFilter.reportType("GPSOfficeRef").reportUnbound();
 		registryProxy.addEventListener(registryEventListener,
 				registryEventFilter);
-		executor = Executors.newCachedThreadPool();
+
+		// packets held when the office stopped are processed again
+		if (journal != null) {
+			replayJournal();
+		}
+		registerMetrics();
+	}
+
+	/**
+	 * Registers the metrics of the office with the platform MBean server so
+	 * that they can be read with JMX. The office runs without them if the
+	 * registration fails.
+	 */
+	private void registerMetrics() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+					new ObjectName(metricsDomain + ":type=OfficeMetrics,name="
+							+ ObjectName.quote(cityName)));
+		} catch (Exception e) {
+			System.out.println("Cannot register the metrics of " + cityName
+					+ ": " + e);
+		}
 	}
 
 	/**
-	 * Take an object of GPSOffice and add it to the neighbor if it is closer
-	 * than other neighbors of the current office.
+	 * Constructs a GPSOffice which is neither exported nor bound to a 
+	 * registry. Such an office only knows the neighbors added to it directly
+	 * and is used by the benchmarks to exercise the routing and event code.
 	 * 
-	 * @param office Object of type GPSOffice to be added
+	 * @param cityName name of the GPSOffice
+	 * @param xValue X coordinate of the GPSOffice
+	 * @param yValue Y coordinate of the GPSOffice
+	 */
+	GPSOffice(String cityName, double xValue, double yValue) {
+		this(cityName, xValue, yValue, new String[0], null);
+	}
+
+	/**
+	 * Constructs a detached GPSOffice which runs its packets on the virtual
+	 * clock of a simulation. All the offices of a simulation share its 
+	 * scheduler, so that the whole network is driven by one thread, and 
+	 * report their events to the customers and listeners with direct calls.
+	 * The journal is not opened in a simulation.
 	 * 
-	 * @throws RemoteException
-	 * 			Thrown if remote method execution results in error
+	 * @param cityName name of the GPSOffice
+	 * @param xValue X coordinate of the GPSOffice
+	 * @param yValue Y coordinate of the GPSOffice
+	 * @param options settings of the form <option>=<value>
+	 * @param simulation scheduler of the simulation, null to run on the 
+	 * 			own threads of the office
 	 */
-	private void addNewNeighbor(GPSOfficeRef office) throws RemoteException {
-		synchronized (neighbors) {
-			if (office != null) {
-				double cDist = evaluateDistance(this, office);
-				NeighborStorage neighbor = new NeighborStorage(office,
-						office.getCity(), office.getXValue(),
-						office.getYValue());
-				// if less than 3 neighbors then add directly to list
-				if (neighbors.size() < maxNeighbors) {
-					neighbors.add(neighbor);
-				} else {
-					// calculate the distance of GPSOffice argument with the 
-					// present neighbors and replace if near
-					for (int i = 0; i < maxNeighbors; i++) {
-						double nDist = evaluateDistance(office, neighbors
-								.get(i).getOffice());
-						if (cDist < nDist) {
-							neighbors.set(i, neighbor);
-							break;
-						}
-					}
-				}
-			}
+	GPSOffice(String cityName, double xValue, double yValue,
+			String[] options, SimulationScheduler simulation) {
+		this.cityName = cityName;
+		this.xValue = xValue;
+		this.yValue = yValue;
+		this.simulation = simulation;
+		for (String option : options) {
+			parseOption(option);
 		}
-
+		initialize();
 	}
 
 	/**
-	 * Get's the list of names of remote objects registered with the Registry 
-	 * Server. For each object name it requests that object from the Registry 
-	 * Server and try to add it to the neighbor list.
+	 * Creates the neighbor list, the worker pool, the timer and the event
+	 * publishers of the office once its settings are known
 	 */
-	private void updateNeighbors() {
-		List<String> names = new ArrayList<String>();
-		// list from Registry server
-		try {
-			names = registryProxy.list("GPSOfficeRef");
-		} catch (Exception e1) {
-			System.out.println("Error retrieving names of GPSOffice");
-			e1.printStackTrace();
+	private void initialize() {
+		neighbors = new AtomicReference<NeighborTable>(NeighborTable.EMPTY);
+		knownOffices = new SpatialGrid(knownOfficesCellSize);
+		descriptors = new ConcurrentHashMap<GPSOfficeRef, NeighborStorage>();
+		outbound = new ConcurrentHashMap<String, OutboundQueue>();
+		health = new ConcurrentHashMap<String, NeighborHealth>();
+		lastTrackingNumber = new AtomicLong();
+		ingress = new Semaphore(ingressCapacity);
+		recentPackets = new LinkedHashMap<Long, Integer>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+				return size() > recentCapacity;
+			}
+		};
+		if (simulation == null) {
+			executor = virtualThreads ? newVirtualThreadExecutor()
+					: Executors.newFixedThreadPool(workerCount);
+			scheduler = Executors.newSingleThreadScheduledExecutor();
+		} else {
+			executor = simulation;
+			scheduler = simulation;
+			clock = simulation;
 		}
+		metrics = new OfficeMetrics(ingressCapacity, ingress, executor,
+				health);
+		customerGenerators = new GeneratorCache(generatorIdleTimeout,
+				generatorMaxAge);
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				customerGenerators.evictIdle();
+			}
+		}, generatorIdleTimeout, generatorIdleTimeout / 2,
+				TimeUnit.MILLISECONDS);
 
-		synchronized (neighbors) {
-			// look up from the registry and try to add to neighbor list
-			neighbors = new ArrayList<NeighborStorage>();
-			for (String obj : names) {
-				GPSOfficeRef office;
-				try {
-					office = (GPSOfficeRef) registryProxy.lookup(obj);
-					if (office != null && !office.getCity().equals(cityName)) {
-						addNewNeighbor(office);
+		// batched event publisher for the headquarter
+		eventPublisher = new EventPublisher(maxEventBatchSize);
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						eventPublisher.flush();
 					}
+				});
+			}
+		}, eventFlushInterval, eventFlushInterval, TimeUnit.MILLISECONDS);
 
-				} catch (Exception e) {
-					continue;
-				}
+		// probes of the neighbors whose circuit is open
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						probeNeighbors();
+					}
+				});
 			}
+		}, probeInterval, probeInterval, TimeUnit.MILLISECONDS);
+
+		// routing decisions cached per destination cell
+		if (cacheCapacity > 0) {
+			nextHopCache = new NextHopCache(cacheCapacity, cacheCellSize);
 		}
-	}
 
-	/**
-	 * Evaluate Eucledian distance between to points represent by (x,y)
-	 * 
-	 * @param x1 X coordinate of first point
-	 * @param x2 X coordinate of second point
-	 * @param y1 Y coordinate of first point
-	 * @param y2 Y coordinate of second point
-	 * 
-	 * @return
-	 * 			Distance between the two points
-	 */
-	private double evaluateEucledian(double x1, double x2, double y1, double y2) {
-		double distance = 0.0;
-		double x = x2 - x1;
-		double y = y2 - y1;
-		distance = Math.sqrt((x * x) + (y * y));
-		return distance;
+		// shortest path routing table
+		if (routingRadius > 0) {
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							refreshRoutingTable();
+						}
+					});
+				}
+			}, routingInitialDelay, routingRefreshInterval,
+					TimeUnit.MILLISECONDS);
+		}
 	}
 
 	/**
-	 * Evaluate the distance between two GPSOffice objects.
+	 * Creates an executor which starts a virtual thread for each task, so
+	 * that a forward blocked on a slow neighbor holds a few kilobytes rather
+	 * than one of the worker threads. The packets still wait for the 
+	 * processing delay on the timer, which is cheaper than a sleeping thread
+	 * of any kind, and the ingress capacity bounds the number of tasks. The
+	 * executor is looked up by reflection so that the office runs on a JDK 
+	 * without virtual threads, with the fixed pool instead.
 	 * 
-	 * @param office1 First GPSOffice Object
-	 * @param office2 Second GPSOffice Object
-	 * @return
-	 * @throws RemoteException
+	 * @return executor of the tasks of the office
 	 */
-	private double evaluateDistance(GPSOfficeRef office1, GPSOfficeRef office2)
-			throws RemoteException {
-		double distance = 0.0;
-		if (office2 != null) {
-			distance = evaluateEucledian(office1.getXValue(),
-					office2.getXValue(), office1.getYValue(),
-					office2.getYValue());
+	private ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			System.out.println("Virtual threads are not available, "
+					+ cityName + " uses " + workerCount + " worker threads");
+			return Executors.newFixedThreadPool(workerCount);
 		}
-		return distance;
 	}
 
 	/**
-	 * Getter to get the X coordinate to current GPSOffice Object
+	 * Stops the worker threads and the timer of the office. Used when the 
+	 * office cannot be bound to the registry and by the benchmarks once they
+	 * are done with a detached office.
 	 */
-	public double getXValue() {
-		return this.xValue;
+	void shutdownExecutors() {
+		// the scheduler of a simulation is shut down by the simulation
+		if (simulation == null) {
+			scheduler.shutdownNow();
+			executor.shutdownNow();
+		}
 	}
 
 	/**
-	 * Getter to get the Y coordinate of current GPSOffice Object
-	 */
+	 * Take an object of GPSOffice and add it to the neighbors if a place is
+	 * free or if it is closer than the farthest neighbor of the current 
+	 * office, which it then replaces.
+	 * 
+	 * @param office Object of type GPSOffice to be added
+	 * 
+	 * @throws RemoteException
+	 * 			Thrown if remote method execution results in error
+	 */
+	void addNewNeighbor(GPSOfficeRef office) throws RemoteException {
+		if (office == null) {
+			return;
+		}
+		NeighborStorage neighbor = describe(office);
+		double cDist = evaluateEucledian(xValue, neighbor.getX(), yValue,
+				neighbor.getY());
+
+		NeighborTable current, updated;
+		do {
+			current = neighbors.get();
+			// added if a place is free, otherwise replaces the farthest
+			// neighbor if it is closer
+			updated = current.offer(neighbor, cDist, maxNeighbors);
+		} while (updated != current
+				&& !neighbors.compareAndSet(current, updated));
+		if (updated != current) {
+			routesChanged();
+		}
+	}
+
+	/**
+	 * Returns the shared spatial index of the offices. The index is looked up
+	 * in the registry the first time it is needed and the current office 
+	 * registers itself with it.
+	 * 
+	 * @return office index or null if no index is bound to the registry
+	 */
+	private OfficeIndexRef getOfficeIndex() {
+		OfficeIndexRef index = officeIndex;
+		if (index == null && registryProxy != null) {
+			try {
+				index = (OfficeIndexRef) registryProxy.lookup(OfficeIndex.NAME);
+				index.register(getDescriptor());
+				officeIndex = index;
+			} catch (Exception e) {
+				index = null;
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Replaces the neighbors with the offices nearest to the current office.
+	 * If an office index is bound to the registry the neighbors are found 
+	 * with a single query to the index, otherwise the registry is scanned.
+	 * Only done when the office starts, later changes of the registry are 
+	 * applied one office at a time by officeBound and officeUnbound.
+	 */
+	private void updateNeighbors() {
+		OfficeIndexRef index = getOfficeIndex();
+		if (index != null) {
+			try {
+				List<NeighborStorage> nearest = index.nearest(xValue,
+						yValue, maxNeighbors, cityName);
+				neighbors.set(new NeighborTable(nearest, xValue, yValue));
+				routesChanged();
+				return;
+			} catch (RemoteException e) {
+				// index is gone, look it up again next time
+				officeIndex = null;
+			}
+		}
+		scanRegistry();
+	}
+
+	/**
+	 * Replaces the neighbors with the nearest offices of a spatial index of
+	 * the same process. Used by a simulation in place of the office index.
+	 * 
+	 * @param offices spatial index of the offices of the simulation
+	 */
+	void updateNeighbors(SpatialGrid offices) {
+		List<NeighborStorage> nearest = offices.nearest(xValue, yValue,
+				maxNeighbors, cityName);
+		neighbors.set(new NeighborTable(nearest, xValue, yValue));
+		routesChanged();
+	}
+
+	/**
+	 * Get's the list of names of remote objects registered with the Registry 
+	 * Server. For each object name it requests that object from the Registry 
+	 * Server and adds it to the known offices. The nearest known offices 
+	 * become the neighbors.
+	 */
+	private void scanRegistry() {
+		List<String> names = new ArrayList<String>();
+		// list from Registry server
+		try {
+			names = registryProxy.list("GPSOfficeRef");
+		} catch (Exception e1) {
+			System.out.println("Error retrieving names of GPSOffice");
+			e1.printStackTrace();
+		}
+
+		// look up from the registry and remember every other office
+		for (String obj : names) {
+			GPSOfficeRef office;
+			try {
+				office = (GPSOfficeRef) registryProxy.lookup(obj);
+				if (office != null) {
+					NeighborStorage descriptor = describe(office);
+					if (!descriptor.getCity().equals(cityName)) {
+						knownOffices.add(descriptor);
+					}
+				}
+
+			} catch (Exception e) {
+				continue;
+			}
+		}
+
+		List<NeighborStorage> nearest = knownOffices.nearest(xValue, yValue,
+				maxNeighbors, cityName);
+		neighbors.set(new NeighborTable(nearest, xValue, yValue));
+		routesChanged();
+	}
+
+	/**
+	 * Handles an office newly bound to the registry. Only the new office is
+	 * looked up and tested against the current neighbors.
+	 * 
+	 * @param name name of the bound office
+	 */
+	private void officeBound(String name) {
+		try {
+			GPSOfficeRef office = (GPSOfficeRef) registryProxy.lookup(name);
+			if (office != null) {
+				knownOffices.add(describe(office));
+				// an office bound again under the same name replaces the old
+				removeNeighbor(name);
+				addNewNeighbor(office);
+			}
+		} catch (Exception e) {
+			// the office left again or cannot be reached, ignore it
+		}
+	}
+
+	/**
+	 * Handles an office unbound from the registry. The office is forgotten 
+	 * and if it was a neighbor the next best office takes its place.
+	 * 
+	 * @param name name of the unbound office
+	 */
+	private void officeUnbound(String name) {
+		knownOffices.remove(name);
+		forgetDescriptor(name);
+		health.remove(name);
+		metrics.forget(name);
+		if (removeNeighbor(name)) {
+			promoteNeighbors(name);
+		}
+	}
+
+	/**
+	 * Removes an office from the neighbors
+	 * 
+	 * @param name name of the office
+	 * 
+	 * @return true if the office was a neighbor
+	 */
+	private boolean removeNeighbor(String name) {
+		NeighborTable current;
+		int index;
+		do {
+			current = neighbors.get();
+			index = current.indexOf(name);
+			if (index < 0) {
+				return false;
+			}
+		} while (!neighbors.compareAndSet(current, current.without(index)));
+		routesChanged();
+		return true;
+	}
+
+	/**
+	 * Fills the free neighbor places with the nearest offices which are not
+	 * neighbors yet. The candidates come from the office index if one is 
+	 * bound, otherwise from the known offices.
+	 * 
+	 * @param departed name of the office which left, never promoted
+	 */
+	private void promoteNeighbors(String departed) {
+		List<NeighborStorage> candidates = null;
+		OfficeIndexRef index = getOfficeIndex();
+		if (index != null) {
+			try {
+				// the index may not have dropped the departed office yet
+				candidates = index.nearest(xValue, yValue, maxNeighbors + 2,
+						cityName);
+			} catch (RemoteException e) {
+				officeIndex = null;
+			}
+		}
+		if (candidates == null) {
+			candidates = knownOffices.nearest(xValue, yValue,
+					maxNeighbors + 1, cityName);
+		}
+
+		NeighborTable current, updated;
+		do {
+			current = neighbors.get();
+			updated = current;
+			for (NeighborStorage candidate : candidates) {
+				if (updated.size() >= maxNeighbors) {
+					break;
+				}
+				if (!candidate.getCity().equals(departed)) {
+					updated = updated.offer(candidate, evaluateEucledian(
+							xValue, candidate.getX(), yValue, candidate
+									.getY()), maxNeighbors);
+				}
+			}
+		} while (updated != current
+				&& !neighbors.compareAndSet(current, updated));
+		if (updated != current) {
+			routesChanged();
+		}
+	}
+
+	/**
+	 * Invalidates the routing decisions cached so far, called after every 
+	 * change of the neighbors or the routing table
+	 */
+	private void routesChanged() {
+		NextHopCache cache = nextHopCache;
+		if (cache != null) {
+			cache.invalidate();
+		}
+	}
+
+	/**
+	 * Evaluate Eucledian distance between to points represent by (x,y)
+	 * 
+	 * @param x1 X coordinate of first point
+	 * @param x2 X coordinate of second point
+	 * @param y1 Y coordinate of first point
+	 * @param y2 Y coordinate of second point
+	 * 
+	 * @return
+	 * 			Distance between the two points
+	 */
+	double evaluateEucledian(double x1, double x2, double y1, double y2) {
+		double distance = 0.0;
+		double x = x2 - x1;
+		double y = y2 - y1;
+		distance = Math.sqrt((x * x) + (y * y));
+		return distance;
+	}
+
+	/**
+	 * Returns the name and coordinates of an office along with its reference.
+	 * The descriptor of an office is fetched with a single remote call the
+	 * first time the office is seen and served from the cache afterwards.
+	 * 
+	 * @param office reference of the office
+	 * @return descriptor of the office
+	 * @throws RemoteException
+	 * 			Thrown if the descriptor cannot be fetched
+	 */
+	private NeighborStorage describe(GPSOfficeRef office)
+			throws RemoteException {
+		NeighborStorage descriptor = descriptors.get(office);
+		if (descriptor == null) {
+			descriptor = office.getDescriptor();
+			descriptors.put(office, descriptor);
+		}
+		return descriptor;
+	}
+
+	/**
+	 * Drops the cached descriptors of an office which left the registry
+	 * 
+	 * @param city name of the office
+	 */
+	private void forgetDescriptor(String city) {
+		Iterator<NeighborStorage> it = descriptors.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().getCity().equals(city)) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Getter to get the X coordinate to current GPSOffice Object
+	 */
+	public double getXValue() {
+		return this.xValue;
+	}
+
+	/**
+	 * Getter to get the Y coordinate of current GPSOffice Object
+	 */
 	public double getYValue() {
 		return this.yValue;
 	}
@@ -366,128 +1107,816 @@ public class GPSOffice implements GPSOfficeRef {
 		}
 	}
 
+	/**
+	 * Parses an optional setting of the form <option>=<value> and applies it
+	 * to the current office
+	 * 
+	 * @param arg setting to be parsed
+	 * 
+	 *  @exception IllegalArgumentException
+	 *  				Thrown if the option is unknown or its value is invalid
+	 */
+	private void parseOption(String arg) {
+		int index = arg.indexOf('=');
+		if (index <= 0) {
+			throw new IllegalArgumentException("Invalid option: " + arg);
+		}
+		String name = arg.substring(0, index);
+		String value = arg.substring(index + 1);
+		if (name.equals("delay")) {
+			processingDelay = parseInt(value, name);
+			if (processingDelay < 0) {
+				throw new IllegalArgumentException("Invalid argument for "
+						+ name + ":" + value);
+			}
+		} else if (name.equals("capacity")) {
+			ingressCapacity = parseInt(value, name);
+			if (ingressCapacity < 1) {
+				throw new IllegalArgumentException("Invalid argument for "
+						+ name + ":" + value);
+			}
+		} else if (name.equals("radius")) {
+			routingRadius = parseInt(value, name);
+			if (routingRadius < 0 || routingRadius > maxRoutingRadius) {
+				throw new IllegalArgumentException("Invalid argument for "
+						+ name + ":" + value);
+			}
+		} else if (name.equals("neighbors")) {
+			maxNeighbors = parseInt(value, name);
+			if (maxNeighbors < 1) {
+				throw new IllegalArgumentException("Invalid argument for "
+						+ name + ":" + value);
+			}
+		} else if (name.equals("retries")) {
+			forwardRetries = parseInt(value, name);
+			if (forwardRetries < 0) {
+				throw new IllegalArgumentException("Invalid argument for "
+						+ name + ":" + value);
+			}
+		} else if (name.equals("journal")) {
+			if (value.length() == 0) {
+				throw new IllegalArgumentException("Invalid argument for "
+						+ name + ":" + value);
+			}
+			journalPath = value;
+		} else if (name.equals("cache")) {
+			cacheCapacity = parseInt(value, name);
+			if (cacheCapacity < 0) {
+				throw new IllegalArgumentException("Invalid argument for "
+						+ name + ":" + value);
+			}
+		} else if (name.equals("cell")) {
+			cacheCellSize = parseDouble(value, name);
+			if (!(cacheCellSize > 0.0)) {
+				throw new IllegalArgumentException("Invalid argument for "
+						+ name + ":" + value);
+			}
+		} else if (name.equals("workers")) {
+			workerCount = parseInt(value, name);
+			if (workerCount < 1) {
+				throw new IllegalArgumentException("Invalid argument for "
+						+ name + ":" + value);
+			}
+		} else if (name.equals("threads")) {
+			if (!value.equals("platform") && !value.equals("virtual")) {
+				throw new IllegalArgumentException("Invalid argument for "
+						+ name + ":" + value);
+			}
+			virtualThreads = value.equals("virtual");
+		} else {
+			throw new IllegalArgumentException("Unknown option: " + name);
+		}
+	}
+
 	/**
 	 * Gets the closest GPSOffice to the destination location among the 
 	 * neighbors. It will return null if current GPSOffice is the closest to 
-	 * the destination location.
+	 * the destination location. Neighbors whose circuit is open are skipped.
 	 * 
 	 * @param p Packet received by the GPSOffice
 	 * 
 	 * @return an GPSOffice object closest to destination location
 	 */
-	private final NeighborStorage getClosestOffice(Packet p) {
+	final NeighborStorage getClosestOffice(Packet p) {
 		// distance of destination with current GPSOffice
-		double minDist = evaluateEucledian(this.xValue, p.getxValue(),
-				this.yValue, p.getyValue());
-		NeighborStorage result = null;
+		double minDist = squaredDistance(p.getxValue(), p.getyValue());
 
-		int lim = Math.min(neighbors.size(), maxNeighbors);
 		// check each neighbor distance with the desination location
-		for (int i = 0; i < lim; i++) {
-			double dist = evaluateEucledian(neighbors.get(i).getX(),
-					p.getxValue(), neighbors.get(i).getY(), p.getyValue());
-			if (dist < minDist) {
-				result = neighbors.get(i);
-				minDist = dist;
+		NeighborTable table = neighbors.get();
+		int index = table.closest(p.getxValue(), p.getyValue(), minDist);
+		if (index < 0 || isAvailable(table.get(index).getCity())) {
+			return index < 0 ? null : table.get(index);
+		}
+
+		// the circuit of the closest neighbor is open, take the next one
+		for (int next : table.rank(p.getxValue(), p.getyValue(), minDist)) {
+			if (isAvailable(table.get(next).getCity())) {
+				return table.get(next);
 			}
 		}
-		return result;
+		return null;
+	}
+
+	/**
+	 * Chooses the next office of a packet. The decision taken for a 
+	 * destination is cached for its whole cell until the neighbors or the
+	 * routing table change. A cached decision is only reused if it still 
+	 * holds for the destination of the packet, which may lie on the other 
+	 * side of a border crossing the cell. The routing table is followed when
+	 * it knows the destination area and its first hop is still a healthy 
+	 * neighbor, otherwise the closest neighbor is chosen. A packet which 
+	 * already took more than maxTableHops hops is only routed to closer 
+	 * neighbors so that it cannot circle between offices whose tables 
+	 * disagree.
+	 * 
+	 * @param p Packet received by the GPSOffice
+	 * 
+	 * @return neighbor to forward the packet to, null if the current office
+	 * 			should deliver the packet
+	 */
+	final NeighborStorage route(Packet p) {
+		NextHopCache cache = nextHopCache;
+		RoutingTable table = routingTable;
+		if (cache == null || (table != null && p.getHops() > maxTableHops)) {
+			return computeRoute(p);
+		}
+		NeighborStorage hop = cache.get(p.getxValue(), p.getyValue());
+		if (hop == null || !holdsFor(hop, p)) {
+			int generation = cache.generation();
+			hop = computeRoute(p);
+			cache.put(p.getxValue(), p.getyValue(), hop, generation);
+			return hop;
+		}
+		return hop == NextHopCache.DELIVER ? null : hop;
+	}
+
+	/**
+	 * Checks a decision cached for the cell of a packet against the 
+	 * destination of the packet. A cached neighbor must be closer to the 
+	 * destination than this office, and a packet is only delivered here if 
+	 * no neighbor is closer.
+	 * 
+	 * @param hop cached decision
+	 * @param p Packet received by the GPSOffice
+	 * 
+	 * @return true if the decision can be used for the packet
+	 */
+	private boolean holdsFor(NeighborStorage hop, Packet p) {
+		double own = squaredDistance(p.getxValue(), p.getyValue());
+		if (hop == NextHopCache.DELIVER) {
+			return neighbors.get().closest(p.getxValue(), p.getyValue(),
+					own) < 0;
+		}
+		double dx = hop.getX() - p.getxValue();
+		double dy = hop.getY() - p.getyValue();
+		return dx * dx + dy * dy < own;
+	}
 
+	/**
+	 * Returns the squared distance of a location from this office, computed
+	 * as the neighbor table computes the distances of the neighbors
+	 * 
+	 * @param x X coordinate of the location
+	 * @param y Y coordinate of the location
+	 * @return squared distance
+	 */
+	private double squaredDistance(double x, double y) {
+		double dx = xValue - x;
+		double dy = yValue - y;
+		return dx * dx + dy * dy;
+	}
+
+	/**
+	 * Computes the next office of a packet without the next hop cache
+	 * 
+	 * @param p Packet received by the GPSOffice
+	 * 
+	 * @return neighbor to forward the packet to, null if the current office
+	 * 			should deliver the packet
+	 */
+	private NeighborStorage computeRoute(Packet p) {
+		RoutingTable table = routingTable;
+		if (table != null && p.getHops() <= maxTableHops) {
+			String hop = table.nextHop(p.getxValue(), p.getyValue());
+			if (hop != null) {
+				if (hop.equals(cityName)) {
+					return null;
+				}
+				NeighborTable current = neighbors.get();
+				int index = current.indexOf(hop);
+				if (index >= 0 && isAvailable(hop)) {
+					return current.get(index);
+				}
+			}
+		}
+		return getClosestOffice(p);
+	}
+
+	/**
+	 * Collects the neighbor graph of the offices within the routing radius by
+	 * asking each office for its neighbors, then replaces the routing table
+	 * with one built from the collected graph. Offices which cannot be 
+	 * reached are left out of the graph.
+	 */
+	private void refreshRoutingTable() {
+		Map<String, NeighborStorage> nodes = 
+			new HashMap<String, NeighborStorage>();
+		Map<String, List<String>> edges = new HashMap<String, List<String>>();
+
+		List<NeighborStorage> frontier = neighbors.get().asList();
+		edges.put(cityName, namesOf(frontier));
+		for (NeighborStorage node : frontier) {
+			nodes.put(node.getCity(), node);
+		}
+		for (int depth = 1; depth <= routingRadius && !frontier.isEmpty(); depth++) {
+			List<NeighborStorage> next = new ArrayList<NeighborStorage>();
+			for (NeighborStorage node : frontier) {
+				List<NeighborStorage> adjacent;
+				try {
+					adjacent = node.getOffice().getNeighbors();
+				} catch (RemoteException e) {
+					continue;
+				}
+				edges.put(node.getCity(), namesOf(adjacent));
+				for (NeighborStorage office : adjacent) {
+					if (!office.getCity().equals(cityName)
+							&& !nodes.containsKey(office.getCity())) {
+						nodes.put(office.getCity(), office);
+						next.add(office);
+					}
+				}
+			}
+			frontier = next;
+		}
+		routingTable = new RoutingTable(getDescriptor(), nodes, edges);
+		routesChanged();
+	}
+
+	/**
+	 * Replaces the routing table with one built elsewhere. Used by the
+	 * benchmarks, whose detached offices cannot collect the neighbor graph.
+	 * 
+	 * @param table routing table to be followed, null to route greedily
+	 */
+	void setRoutingTable(RoutingTable table) {
+		routingTable = table;
+		routesChanged();
+	}
+
+	/**
+	 * Returns the names of a list of offices
+	 * 
+	 * @param offices descriptors of the offices
+	 * @return names of the offices
+	 */
+	private static List<String> namesOf(List<NeighborStorage> offices) {
+		List<String> names = new ArrayList<String>(offices.size());
+		for (NeighborStorage office : offices) {
+			names.add(office.getCity());
+		}
+		return names;
 	}
 
 	/**
 	 * Creates a new remote event to be generated by the remote event generator
 	 *  
-	 * @param type type of message to be generated
+	 * @param status status of the packet to be reported
 	 * @param p Packet received by current GPSOffice
 	 * @param city name of the GPSOffice
 	 * 
 	 * @return an remote event
 	 */
-	private PacketEvent createNewPacketEvent(String type, Packet p, String city) {
-		PacketEvent event = null;
-		String message = "Package number " + p.getTrackingNumber();
-		if (type.equals("arrived")) {
-			message += " arrived at " + city + " office";
-		} else if (type.equals("departed")) {
-			message += " departed from " + city + " office";
-		} else if (type.equals("lost")) {
-			message += " lost by " + city + " office";
-		} else if (type.equals("delivered")) {
-			message += " delivered from " + city + " office to ("
-					+ p.getxValue() + "," + p.getyValue() + ")";
-		}
-		event = new PacketEvent(message, p.getTrackingNumber());
-		return event;
+	PacketEvent createNewPacketEvent(PacketEvent.Status status,
+			Packet p, String city) {
+		return createNewPacketEvent(status, p, city, null);
 	}
 
-	@Override
 	/**
-	 * Takes a customer packet analyze the packet, figure out the destination
-	 * and finally forward that packet either to destination or to one of the
-	 * neighbors.
+	 * Creates a new remote event naming the neighbor which caused it
+	 *  
+	 * @param status status of the packet to be reported
+	 * @param p Packet received by current GPSOffice
+	 * @param city name of the GPSOffice
+	 * @param cause name of the neighbor which failed, null if none
 	 * 
-	 *  @param packet Packet received and to be forwarded
+	 * @return an remote event
 	 */
-	public void packetForward(final Packet packet) {
-		
-		// event generator for the customer
-		final RemoteEventGenerator<PacketEvent> remoteEventGenerator = 
-			new RemoteEventGenerator<PacketEvent>();
+	PacketEvent createNewPacketEvent(PacketEvent.Status status,
+			Packet p, String city, String cause) {
+		return new PacketEvent(status, city, p.getTrackingNumber(),
+				p.getxValue(), p.getyValue(), clock.currentTimeMillis(),
+				cause);
+	}
+
+	/**
+	 * Reports a status change of the packet to the customer and publishes it
+	 * for the headquarters. Both share the same immutable event object. In a
+	 * simulation the listener of the customer is called directly.
+	 * 
+	 * @param customer event generator for the customer, null in a simulation
+	 * @param status status of the packet to be reported
+	 * @param p Packet received by current GPSOffice
+	 * @param city name of the GPSOffice
+	 */
+	private void reportEvent(RemoteEventGenerator<PacketEvent> customer,
+			PacketEvent.Status status, Packet p, String city) {
+		reportEvent(customer, status, p, city, null);
+	}
 
-		// add listener to the generator
+	/**
+	 * Reports a status change of the packet caused by a failed neighbor. The
+	 * event is reported by the current office, which held the packet, and 
+	 * only names the neighbor in its message.
+	 * 
+	 * @param customer event generator for the customer, null in a simulation
+	 * @param status status of the packet to be reported
+	 * @param p Packet received by current GPSOffice
+	 * @param city name of the GPSOffice
+	 * @param cause name of the neighbor which failed, null if none
+	 */
+	private void reportEvent(RemoteEventGenerator<PacketEvent> customer,
+			PacketEvent.Status status, Packet p, String city, String cause) {
+		long start = System.nanoTime();
+		PacketEvent event = createNewPacketEvent(status, p, city, cause);
+		if (customer != null) {
+			customer.reportEvent(event);
+		} else if (p.getListener() != null) {
+			try {
+				p.getListener().report(0, event);
+			} catch (RemoteException e) {
+				e.printStackTrace();
+			}
+		}
+		eventPublisher.publish(event);
+		metrics.reported(status, System.nanoTime() - start);
+	}
+
+	/**
+	 * Returns the remote event generator which reports to the customer who 
+	 * sent the packet. Generators are cached per customer listener so that 
+	 * the listener is registered only once for all the packets of a customer.
+	 * 
+	 * @param packet Packet received by current GPSOffice
+	 * 
+	 * @return remote event generator for the customer, null in a simulation
+	 * 			where the customer is called directly
+	 */
+	private RemoteEventGenerator<PacketEvent> getCustomerGenerator(
+			Packet packet) {
+		if (simulation != null) {
+			return null;
+		}
 		try {
-			remoteEventGenerator.addListener(packet.getListener());
+			return customerGenerators.get(packet.getListener());
 		} catch (RemoteException e1) {
 			System.out.println("Failed to add listener for " + cityName);
 			e1.printStackTrace();
+			return new RemoteEventGenerator<PacketEvent>();
 		}
-		
-		// report the customer about the receipt of packet
-		remoteEventGenerator.reportEvent(createNewPacketEvent("arrived",
-				packet, cityName));
-		// report the headquarte about the receipt of the packet
-		remoteGenerator.reportEvent(createNewPacketEvent("arrived", packet,
-				cityName));
-		
-		// time for processing
+	}
+
+	/**
+	 * Puts the packet in the outbound queue of the neighbor. The queue is 
+	 * flushed immediately once it holds a full batch, otherwise a flush is
+	 * scheduled after the batch delay.
+	 * 
+	 * @param office neighbor to which the packet is forwarded
+	 * @param packet Packet to be forwarded
+	 */
+	private void enqueueOutbound(NeighborStorage office, Packet packet) {
+		OutboundQueue queue = outbound.get(office.getCity());
+		if (queue == null) {
+			OutboundQueue created = new OutboundQueue(office, maxBatchSize);
+			queue = outbound.putIfAbsent(office.getCity(), created);
+			if (queue == null) {
+				queue = created;
+			}
+		}
+
+		final OutboundQueue q = queue;
+		if (q.add(packet, office)) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					flushOutbound(q);
+				}
+			});
+		} else {
+			scheduleFlush(q, batchDelay);
+		}
+	}
+
+	/**
+	 * Schedules a flush of the outbound queue unless one is already pending
+	 * 
+	 * @param queue outbound queue to be flushed
+	 * @param delay time in milliseconds after which the queue is flushed
+	 */
+	private void scheduleFlush(final OutboundQueue queue, long delay) {
+		if (queue.markFlushScheduled()) {
+			scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							flushOutbound(queue);
+						}
+					});
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Opens the journal of the office and schedules the group commit which
+	 * writes the appended records to the disk
+	 * 
+	 * @throws IOException
+	 * 			Thrown if the journal cannot be opened
+	 */
+	private void openJournal() throws IOException {
+		journal = new PacketJournal(new File(journalPath), journalSize);
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						journal.force();
+					}
+				});
+			}
+		}, journalSyncInterval, journalSyncInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Accepts again the packets which the journal recorded as held by the 
+	 * office when it stopped. They are already in the journal and are not
+	 * recorded a second time. Every replayed packet is reported as arriving
+	 * again, also the ones lost because they no longer fit, so that their 
+	 * later events pair with an arrival at this office.
+	 */
+	private void replayJournal() {
+		for (Packet packet : journal.getRecovered()) {
+			if (ingress.tryAcquire()) {
+				accept(packet);
+			} else {
+				RemoteEventGenerator<PacketEvent> customer = 
+					getCustomerGenerator(packet);
+				reportEvent(customer, PacketEvent.Status.ARRIVED, packet,
+						cityName);
+				reportEvent(customer, PacketEvent.Status.LOST, packet,
+						cityName);
+				finished(packet);
+			}
+		}
+	}
+
+	/**
+	 * Admits a packet in the ingress queue and records it in the journal
+	 * 
+	 * @param packet Packet to be admitted
+	 * 
+	 * @return false if the ingress queue is full
+	 * 
+	 * @throws IOException
+	 * 			Thrown if the packet cannot be recorded in the journal
+	 */
+	private boolean admit(Packet packet) throws IOException {
+		if (!ingress.tryAcquire()) {
+			return false;
+		}
+		if (journal != null) {
+			try {
+				journal.accepted(packet);
+			} catch (IOException e) {
+				ingress.release();
+				throw e;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Records in the journal that the office no longer holds a packet and
+	 * frees its place in the ingress queue
+	 * 
+	 * @param packet Packet handed off, delivered or lost
+	 */
+	private void finished(Packet packet) {
+		if (journal != null) {
+			try {
+				journal.done(packet);
+			} catch (IOException e) {
+				// the packet would be replayed again after a restart
+				e.printStackTrace();
+			}
+		}
+		ingress.release();
+	}
+
+	/**
+	 * Forwards all the pending packets of an outbound queue to its neighbor 
+	 * with a single remote call. Packets refused by a busy neighbor are put
+	 * back in the queue and sent again after a back off, so that they keep 
+	 * holding the ingress queue of this office and the back pressure reaches 
+	 * the upstream offices. After busyRetries refusals in a row the refused 
+	 * packets fail over to the other neighbors. If the call fails the batch is sent again a few
+	 * times while the circuit of the neighbor stays closed, then the packets
+	 * fail over to the other neighbors. A neighbor which took the batch 
+	 * before the call timed out does not take its packets a second time.
+	 * Packets are reported as departed only once the neighbor took them.
+	 * 
+	 * @param queue outbound queue to be flushed
+	 */
+	private void flushOutbound(OutboundQueue queue) {
+		List<Packet> batch = queue.drain();
+		if (batch.isEmpty()) {
+			return;
+		}
+		NeighborStorage neighbor = queue.getNeighbor();
+		NeighborHealth status = healthOf(neighbor);
+		if (status.isAvailable()) {
+			long start = System.nanoTime();
+			try {
+				int accepted = neighbor.getOffice().packetForwardBatch(batch);
+				long elapsed = System.nanoTime() - start;
+				metrics.forwarded(neighbor.getCity(), accepted, elapsed);
+				if (status.recordSuccess(elapsed)) {
+					routesChanged();
+				}
+				queue.resetFailures();
+				for (Packet packet : batch.subList(0, accepted)) {
+					finished(packet);
+					// report to customer and headquarter about the forward 
+					reportEvent(getCustomerGenerator(packet),
+							PacketEvent.Status.DEPARTED, packet, cityName);
+				}
+				if (accepted > 0) {
+					queue.resetRefusals();
+				}
+				if (accepted < batch.size()) {
+					List<Packet> refused = new ArrayList<Packet>(batch.subList(
+							accepted, batch.size()));
+					if (queue.recordRefusal() <= busyRetries) {
+						queue.requeue(refused);
+						scheduleFlush(queue, busyBackoff);
+					} else {
+						queue.resetRefusals();
+						for (Packet packet : refused) {
+							failOver(packet, neighbor.getCity());
+						}
+					}
+				}
+				return;
+			} catch (Exception e) {
+				if (status.recordFailure(clock.currentTimeMillis())) {
+					routesChanged();
+				}
+				if (status.isAvailable()
+						&& queue.recordFailure() <= forwardRetries) {
+					queue.requeue(batch);
+					scheduleFlush(queue, retryDelay);
+					return;
+				}
+			}
+		}
+		queue.resetFailures();
+		// packets queued meanwhile fail over along with the batch
+		batch.addAll(queue.drain());
+		for (Packet packet : batch) {
+			failOver(packet, neighbor.getCity());
+		}
+	}
+
+	/**
+	 * Forwards a packet which could not be given to a neighbor to the next 
+	 * closest neighbor that is still closer to the destination than the 
+	 * current office. Neighbors whose circuit is open are skipped. The 
+	 * packet is reported as lost if no neighbor is left.
+	 * 
+	 * @param packet Packet to be forwarded
+	 * @param failed name of the neighbor which failed to take the packet
+	 */
+	private void failOver(Packet packet, String failed) {
+		double limit = squaredDistance(packet.getxValue(), packet.getyValue());
+		NeighborTable table = neighbors.get();
+		for (int index : table.rank(packet.getxValue(), packet.getyValue(),
+				limit)) {
+			NeighborStorage candidate = table.get(index);
+			if (!candidate.getCity().equals(failed)
+					&& isAvailable(candidate.getCity())) {
+				enqueueOutbound(candidate, packet);
+				return;
+			}
+		}
+		reportEvent(getCustomerGenerator(packet), PacketEvent.Status.LOST,
+				packet, cityName, failed);
+		finished(packet);
+	}
+
+	/**
+	 * Returns the health of a neighbor, created with a closed circuit the 
+	 * first time the neighbor is used
+	 * 
+	 * @param neighbor descriptor of the neighbor
+	 * @return health of the neighbor
+	 */
+	private NeighborHealth healthOf(NeighborStorage neighbor) {
+		NeighborHealth result = health.get(neighbor.getCity());
+		if (result == null) {
+			NeighborHealth created = new NeighborHealth(neighbor,
+					failureThreshold, openPeriod);
+			result = health.putIfAbsent(neighbor.getCity(), created);
+			if (result == null) {
+				result = created;
+			}
+		}
+		result.setNeighbor(neighbor);
+		return result;
+	}
+
+	/**
+	 * Checks if packets can be given to a neighbor
+	 * 
+	 * @param city name of the neighbor
+	 * @return false if the circuit of the neighbor is open
+	 */
+	private boolean isAvailable(String city) {
+		NeighborHealth status = health.get(city);
+		return status == null || status.isAvailable();
+	}
+
+	/**
+	 * Probes the neighbors whose circuit has been open for the open period
+	 * with a cheap remote call. A successful probe closes the circuit so that
+	 * the routing uses the neighbor again, a failed one opens it again.
+	 */
+	private void probeNeighbors() {
+		long now = clock.currentTimeMillis();
+		for (NeighborHealth status : health.values()) {
+			if (!status.startProbe(now)) {
+				continue;
+			}
+			long start = System.nanoTime();
+			try {
+				status.getNeighbor().getOffice().getCity();
+				if (status.recordSuccess(System.nanoTime() - start)) {
+					routesChanged();
+				}
+			} catch (Exception e) {
+				status.recordFailure(clock.currentTimeMillis());
+			}
+		}
+	}
+
+	@Override
+	/**
+	 * Takes a customer packet, reports its arrival and schedules it to be 
+	 * processed once the processing delay of the office has elapsed. The call
+	 * returns right away so that no RMI thread is held for the delay.
+	 * 
+	 *  @param packet Packet received and to be forwarded
+	 *  
+	 *  @exception OfficeBusyException
+	 *  		Thrown if the ingress queue of the office is full
+	 *  
+	 *  @exception RemoteException
+	 *  		Thrown if the packet cannot be recorded in the journal
+	 */
+	public void packetForward(final Packet packet) throws RemoteException,
+			OfficeBusyException {
 		try {
-			Thread.sleep(3000);
-		} catch (InterruptedException e) {
+			if (!admit(packet)) {
+				throw new OfficeBusyException("GPS Office " + cityName
+						+ " cannot accept more packets");
+			}
+		} catch (IOException e) {
+			throw new RemoteException("GPS Office " + cityName
+					+ " cannot record the packet", e);
 		}
+		accept(packet);
+	}
+
+	/**
+	 * Reports the arrival of a packet which was admitted in the ingress queue
+	 * and schedules it to be processed after the processing delay.
+	 * 
+	 * @param packet Packet admitted by the office
+	 */
+	private void accept(final Packet packet) {
+		packet.incrementHops();
+		
+		// event generator for the customer
+		final RemoteEventGenerator<PacketEvent> remoteEventGenerator = 
+			getCustomerGenerator(packet);
 		
-		final NeighborStorage office = getClosestOffice(packet);
+		// report the customer and headquarter about the receipt of packet
+		reportEvent(remoteEventGenerator, PacketEvent.Status.ARRIVED, packet,
+				cityName);
+		
+		// time for processing, the packet is routed when the delay ends
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						processPacket(packet, remoteEventGenerator);
+					}
+				});
+			}
+		}, processingDelay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Analyze a packet whose processing delay has elapsed, figure out the 
+	 * destination and finally forward that packet either to destination or 
+	 * to one of the neighbors.
+	 * 
+	 * @param packet Packet to be forwarded
+	 * @param remoteEventGenerator event generator for the customer
+	 */
+	private void processPacket(Packet packet,
+			RemoteEventGenerator<PacketEvent> remoteEventGenerator) {
+		long start = System.nanoTime();
+		final NeighborStorage office = route(packet);
+		metrics.routed(System.nanoTime() - start);
 
 		// if null the destination is closer than neighbors
 		if (office == null) {
-			remoteEventGenerator.reportEvent(createNewPacketEvent("delivered",
-					packet, cityName));
-			remoteGenerator.reportEvent(createNewPacketEvent("delivered",
-					packet, cityName));
+			finished(packet);
+			reportEvent(remoteEventGenerator, PacketEvent.Status.DELIVERED,
+					packet, cityName);
 		} else {
-			final GPSOfficeRef o = office.getOffice();
-			// execute the forward in a new thread
-			executor.execute(new Runnable() {
+			// queue the packet for the next batch to the neighbor, it departs
+			// once the neighbor took it
+			enqueueOutbound(office, packet);
+		}
+	}
 
-				@Override
-				public void run() {
-					String city = new String(cityName);
-					try {
-						city = o.getCity();
-						o.packetForward(packet);
-
-					} catch (Exception e) {
-						remoteEventGenerator.reportEvent(createNewPacketEvent(
-								"lost", packet, city));
-						remoteGenerator.reportEvent(createNewPacketEvent(
-								"lost", packet, city));
-					}
+	@Override
+	/**
+	 * Takes a batch of packets from a neighbor and accepts each packet as if
+	 * it was received through packetForward. Accepting stops at the first 
+	 * packet which does not fit in the ingress queue or cannot be recorded
+	 * in the journal, the sender sends the rest again later.
+	 * 
+	 * A sender whose call timed out sends the batch again although this 
+	 * office may have taken it. A packet already taken with the same hop 
+	 * count is counted as accepted without being taken twice.
+	 * 
+	 * @param packets Packets received and to be forwarded
+	 * 
+	 * @return number of packets accepted from the start of the batch
+	 */
+	public int packetForwardBatch(final List<Packet> packets) {
+		int accepted = 0;
+		for (Packet packet : packets) {
+			if (!takeOnce(packet)) {
+				accepted++;
+				continue;
+			}
+			try {
+				if (!admit(packet)) {
+					forget(packet);
+					break;
 				}
-			});
-			// report to customer about the forward 
-			remoteEventGenerator.reportEvent(createNewPacketEvent("departed", packet, cityName));
-			// report to headquarter about the forward
-			remoteGenerator.reportEvent(createNewPacketEvent("departed", packet, cityName));
+			} catch (IOException e) {
+				forget(packet);
+				e.printStackTrace();
+				break;
+			}
+			accept(packet);
+			accepted++;
+		}
+		return accepted;
+	}
+
+	/**
+	 * Remembers a packet taken from a neighbor
+	 * 
+	 * @param packet Packet received from a neighbor
+	 * @return false if the packet was already taken on the same hop
+	 */
+	private boolean takeOnce(Packet packet) {
+		synchronized (recentPackets) {
+			Integer hops = recentPackets.put(packet.getTrackingNumber(),
+					packet.getHops());
+			return hops == null || hops.intValue() != packet.getHops();
+		}
+	}
+
+	/**
+	 * Forgets a packet which could not be taken, so that it is taken when
+	 * it is sent again
+	 * 
+	 * @param packet Packet received from a neighbor
+	 */
+	private void forget(Packet packet) {
+		synchronized (recentPackets) {
+			recentPackets.remove(packet.getTrackingNumber());
 		}
 	}
 
@@ -497,14 +1926,75 @@ public class GPSOffice implements GPSOfficeRef {
 	 * @param xVal X coordinate of the destination
 	 * @param yVal Y coordinate of the destination
 	 * @param remoteListener remote listener of the customer
+	 * 
+	 * @return tracking number of the new Packet
 	 */
-	public void createSendPacket(double xVal, double yVal,
+	public long createSendPacket(double xVal, double yVal,
 			RemoteEventListener<PacketEvent> remoteListener)
-			throws RemoteException {
-		Packet packet = new Packet(xVal, yVal, System.currentTimeMillis(),
+			throws RemoteException, OfficeBusyException {
+		Packet packet = new Packet(xVal, yVal, nextTrackingNumber(),
 				remoteListener);
 		packetForward(packet);
+		return packet.getTrackingNumber();
+	}
 
+	/**
+	 * Returns a new tracking number. The high bits follow the clock in 
+	 * milliseconds and never repeat within the office, so packets created in
+	 * the same millisecond get consecutive values. The low bits are the 
+	 * tracking prefix of the office, which the office checks to be unique 
+	 * in the registry when it starts, so that the packets of different 
+	 * offices do not share tracking numbers.
+	 * 
+	 * @return tracking number
+	 */
+	private long nextTrackingNumber() {
+		long now = clock.currentTimeMillis() << trackingOfficeBits;
+		long last;
+		do {
+			last = lastTrackingNumber.get();
+			if (now <= last) {
+				now = last + (1L << trackingOfficeBits);
+			}
+		} while (!lastTrackingNumber.compareAndSet(last, now));
+		return now | trackingPrefix(cityName);
+	}
+
+	/**
+	 * Returns the low bits of the tracking numbers of an office, taken from
+	 * its name
+	 * 
+	 * @param city name of the office
+	 * @return tracking prefix of the office
+	 */
+	static long trackingPrefix(String city) {
+		return city.hashCode() & ((1L << trackingOfficeBits) - 1);
+	}
+
+	/**
+	 * Checks that no other office bound in the registry has the tracking 
+	 * prefix of this office
+	 * 
+	 * @exception IllegalArgumentException
+	 * 			Thrown if the prefix is taken or the registry cannot be listed
+	 */
+	private void checkTrackingPrefix() {
+		List<String> names;
+		try {
+			names = registryProxy.list("GPSOfficeRef");
+		} catch (Exception e) {
+			throw new IllegalArgumentException(
+					"Cannot connect to registry server at " + hostName + ":"
+							+ portNumber);
+		}
+		long prefix = trackingPrefix(cityName);
+		for (String name : names) {
+			if (!name.equals(cityName) && trackingPrefix(name) == prefix) {
+				throw new IllegalArgumentException("GPS Office " + cityName
+						+ " has the same tracking prefix as " + name
+						+ ", choose another name");
+			}
+		}
 	}
 
 	@Override
@@ -517,10 +2007,62 @@ public class GPSOffice implements GPSOfficeRef {
 
 	@Override
 	/**
-	 * Add a remote event listener on the remote event generator
+	 * Getter to get the current neighbors of the GPSOffice
+	 */
+	public List<NeighborStorage> getNeighbors() {
+		return neighbors.get().asList();
+	}
+
+	@Override
+	/**
+	 * Getter to get the name, coordinates and reference of the current 
+	 * GPSOffice in a single call
 	 */
-	public Lease addListener(RemoteEventListener<PacketEvent> listener)
+	public NeighborStorage getDescriptor() {
+		NeighborStorage result = descriptor;
+		if (result == null) {
+			result = new NeighborStorage(this, cityName, xValue, yValue);
+			descriptor = result;
+		}
+		return result;
+	}
+
+	@Override
+	/**
+	 * Getter to get the counters of the next hop cache, null if the cache 
+	 * is disabled
+	 */
+	public CacheStatistics getCacheStatistics() {
+		NextHopCache cache = nextHopCache;
+		return cache == null ? null : cache.getStatistics();
+	}
+
+	@Override
+	/**
+	 * Getter to get a snapshot of the counters, gauges and hot path times 
+	 * of the office
+	 */
+	public OfficeStatistics getMetrics() {
+		return metrics.snapshot();
+	}
+
+	@Override
+	/**
+	 * Add a remote event listener which receives the batches of events 
+	 * published for the headquarters
+	 */
+	public Lease addListener(RemoteEventListener<PacketEventBatch> listener)
 			throws RemoteException {
-		return remoteGenerator.addListener(listener);
+		return eventPublisher.addListener(listener);
+	}
+
+	/**
+	 * Adds a listener of the same process which receives the batches of 
+	 * events with direct calls, as the headquarters of a simulation does
+	 * 
+	 * @param listener listener of the batches of events
+	 */
+	void addLocalListener(RemoteEventListener<PacketEventBatch> listener) {
+		eventPublisher.addLocalListener(listener);
 	}
 }
\ No newline at end of file
@@ -3,6 +3,7 @@
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 import edu.rit.ds.Lease;
 import edu.rit.ds.RemoteEventListener;
@@ -21,8 +22,29 @@ public interface GPSOfficeRef extends Remote {
 	 * 
 	 * @throws RemoteException
 	 * 				Thrown if remote error encountered
+	 * 
+	 * @throws OfficeBusyException
+	 * 				Thrown if the ingress queue of the office is full
+	 */
+	public void packetForward(final Packet packet) throws RemoteException,
+			OfficeBusyException;
+
+	/**
+	 * Forward a batch of packets to this Office in a single remote call. Each
+	 * packet of the batch is analyzed and forwarded exactly as if it was
+	 * received through packetForward. Packets are accepted in order until the
+	 * ingress queue of the office is full, the remaining packets are rejected
+	 * and must be sent again later by the caller.
+	 *
+	 * @param packets Packets to be analyzed and forwarded
+	 *
+	 * @return number of packets accepted from the start of the batch
+	 *
+	 * @throws RemoteException
+	 * 				Thrown if remote error encountered
 	 */
-	public void packetForward(final Packet packet) throws RemoteException;
+	public int packetForwardBatch(final List<Packet> packets)
+			throws RemoteException;
 
 	/**
 	 * Returns the X coordinate of current GPS Office
@@ -54,6 +76,51 @@ public interface GPSOfficeRef extends Remote {
 	 */
 	public String getCity() throws RemoteException;
 
+	/**
+	 * Returns the name and coordinates of the current GPS Office along with 
+	 * its reference, so that all of them are known after a single call
+	 * 
+	 * @return descriptor of the office
+	 * 
+	 * @throws RemoteException
+	 * 				Thrown if remote error encountered
+	 */
+	public NeighborStorage getDescriptor() throws RemoteException;
+
+	/**
+	 * Returns the current neighbors of the GPS Office, used by the other 
+	 * offices to collect the neighbor graph for their routing tables
+	 * 
+	 * @return descriptors of the neighbors
+	 * 
+	 * @throws RemoteException
+	 * 				Thrown if remote error encountered
+	 */
+	public List<NeighborStorage> getNeighbors() throws RemoteException;
+
+	/**
+	 * Returns the counters of the cache of routing decisions of the GPS 
+	 * Office, used to size the cache
+	 * 
+	 * @return statistics of the cache, null if the cache is disabled
+	 * 
+	 * @throws RemoteException
+	 * 				Thrown if remote error encountered
+	 */
+	public CacheStatistics getCacheStatistics() throws RemoteException;
+
+	/**
+	 * Returns a snapshot of the metrics of the GPS Office: the packet 
+	 * counters, the ingress queue depth, the active worker threads and the
+	 * times of the hot path
+	 * 
+	 * @return snapshot of the metrics
+	 * 
+	 * @throws RemoteException
+	 * 				Thrown if remote error encountered
+	 */
+	public OfficeStatistics getMetrics() throws RemoteException;
+
 	/**
 	 * Get the destination location and create a new Packet to be forwarded
 	 * 
@@ -63,21 +130,28 @@ public interface GPSOfficeRef extends Remote {
 	 * 
 	 * @param remoteListener remote event listener of the customer
 	 * 
+	 * @return tracking number of the new Packet, unique among the packets
+	 * 			created by the office
+	 * 
 	 * @throws RemoteException
 	 * 				Thrown if remote error encountered
+	 * 
+	 * @throws OfficeBusyException
+	 * 				Thrown if the ingress queue of the office is full
 	 */
-	public void createSendPacket(double xValue, double yValue,
+	public long createSendPacket(double xValue, double yValue,
 			RemoteEventListener<PacketEvent> remoteListener)
-			throws RemoteException;
+			throws RemoteException, OfficeBusyException;
 
 	/**
-	 * Adds a remote listener to the remote event generator of the current Office
+	 * Adds a remote listener to the remote event generator of the current Office.
+	 * The listener receives the events of the office in periodic batches.
 	 * 
 	 * @param listener remote event listener
 	 * 
 	 * @throws RemoteException
 	 * 				Thrown if remote error encountered
 	 */
-	public Lease addListener(RemoteEventListener<PacketEvent> listener)
+	public Lease addListener(RemoteEventListener<PacketEventBatch> listener)
 			throws RemoteException;
 }
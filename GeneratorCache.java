@@ -0,0 +1,187 @@
+
+
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import edu.rit.ds.Lease;
+import edu.rit.ds.RemoteEventGenerator;
+import edu.rit.ds.RemoteEventListener;
+
+/**
+ * Class GeneratorCache keeps one remote event generator per customer listener
+ * so that a GPSOffice which sees many packets from the same customer registers
+ * the customer listener only once. Generators which were not used for the 
+ * idle timeout are evicted by evictIdle. A generator older than the maximum
+ * age is replaced by a fresh one so that a cached registration never outlives
+ * the lease granted for the listener. The lease of an evicted or replaced
+ * generator is cancelled so that the generator releases the listener.
+ * 
+ * @author Shridhar Bhalekar
+ *
+ */
+public class GeneratorCache {
+
+	/**
+	 * Cached generator along with its usage times
+	 */
+	private static class Entry {
+
+		/**
+		 * Generator reporting to a single customer listener
+		 */
+		private final RemoteEventGenerator<PacketEvent> generator;
+
+		/**
+		 * Lease of the customer listener registered with the generator
+		 */
+		private final Lease lease;
+
+		/**
+		 * Time in milliseconds at which the generator was created
+		 */
+		private final long created;
+
+		/**
+		 * Time in milliseconds at which the generator was last used
+		 */
+		private volatile long lastUsed;
+
+		private Entry(RemoteEventGenerator<PacketEvent> generator, 
+				Lease lease, long now) {
+			this.generator = generator;
+			this.lease = lease;
+			this.created = now;
+			this.lastUsed = now;
+		}
+
+		/**
+		 * Cancels the lease of the customer listener so that the generator
+		 * no longer holds the listener. A lease which cannot be cancelled 
+		 * expires on its own.
+		 */
+		private void cancel() {
+			if (lease == null) {
+				return;
+			}
+			try {
+				lease.cancel();
+			} catch (Exception e) {
+				// the lease already expired or its generator is gone
+			}
+		}
+	}
+
+	/**
+	 * Cached generators keyed by the customer listener
+	 */
+	private ConcurrentMap<RemoteEventListener<PacketEvent>, Entry> entries;
+
+	/**
+	 * Time in milliseconds after which an unused generator is evicted
+	 */
+	private long idleTimeout;
+
+	/**
+	 * Time in milliseconds after which a generator is replaced
+	 */
+	private long maxAge;
+
+	/**
+	 * Generator without any listener used for packets without a customer
+	 */
+	private RemoteEventGenerator<PacketEvent> emptyGenerator;
+
+	/**
+	 * Creates a new GeneratorCache
+	 * 
+	 * @param idleTimeout time in milliseconds after which an unused generator
+	 * 			is evicted
+	 * @param maxAge time in milliseconds after which a generator is replaced
+	 */
+	public GeneratorCache(long idleTimeout, long maxAge) {
+		this.idleTimeout = idleTimeout;
+		this.maxAge = maxAge;
+		this.entries = 
+			new ConcurrentHashMap<RemoteEventListener<PacketEvent>, Entry>();
+		this.emptyGenerator = new RemoteEventGenerator<PacketEvent>();
+	}
+
+	/**
+	 * Returns the generator reporting to the given customer listener, creating
+	 * and registering a new one if none is cached
+	 * 
+	 * @param listener remote event listener of the customer
+	 * 
+	 * @return remote event generator for the customer
+	 * 
+	 * @throws RemoteException
+	 * 				Thrown if the listener cannot be added to a new generator
+	 */
+	public RemoteEventGenerator<PacketEvent> get(
+			RemoteEventListener<PacketEvent> listener) throws RemoteException {
+		if (listener == null) {
+			return emptyGenerator;
+		}
+		long now = System.currentTimeMillis();
+		Entry created = null;
+		while (true) {
+			Entry entry = entries.get(listener);
+			if (entry != null && now - entry.created < maxAge) {
+				entry.lastUsed = now;
+				if (created != null) {
+					// another thread registered the listener first
+					created.cancel();
+				}
+				return entry.generator;
+			}
+
+			if (created == null) {
+				RemoteEventGenerator<PacketEvent> generator = 
+					new RemoteEventGenerator<PacketEvent>();
+				created = new Entry(generator, generator.addListener(listener),
+						now);
+			}
+			if (entry == null) {
+				if (entries.putIfAbsent(listener, created) == null) {
+					return created.generator;
+				}
+			} else if (entries.replace(listener, entry, created)) {
+				entry.cancel();
+				return created.generator;
+			}
+		}
+	}
+
+	/**
+	 * Removes the generators which were not used for the idle timeout and 
+	 * cancels the leases of their listeners
+	 * 
+	 * @return number of generators evicted
+	 */
+	public int evictIdle() {
+		long now = System.currentTimeMillis();
+		int evicted = 0;
+		for (Map.Entry<RemoteEventListener<PacketEvent>, Entry> cached : 
+				entries.entrySet()) {
+			Entry entry = cached.getValue();
+			// a generator replaced in the meantime is left to the next run
+			if ((now - entry.lastUsed >= idleTimeout 
+					|| now - entry.created >= maxAge)
+					&& entries.remove(cached.getKey(), entry)) {
+				entry.cancel();
+				evicted++;
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * Returns the number of cached generators
+	 * @return number of cached generators
+	 */
+	public int size() {
+		return entries.size();
+	}
+}
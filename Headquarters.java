@@ -1,10 +1,17 @@
 
 
+import java.io.File;
 import java.io.IOException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import edu.rit.ds.RemoteEventListener;
+import edu.rit.ds.registry.AlreadyBoundException;
 import edu.rit.ds.registry.NotBoundException;
 import edu.rit.ds.registry.RegistryEvent;
 import edu.rit.ds.registry.RegistryEventFilter;
@@ -17,18 +24,39 @@ import edu.rit.ds.registry.RegistryProxy;
  * status of each and every packet flowing through the system. It will log the
  * details of packet traversal of each and every packet.
  * 
- * To start the customer use the following command:
+ * The events are also appended to an event store on disk and the 
+ * headquarters is bound to the registry, so that the trail of any package 
+ * can be queried through HeadquartersRef along with live metrics of the 
+ * network.
+ * 
+ * To start the headquarters use the following command:
  * <p>
- * Usage: java Customer <host> <port> <name> <X> <Y>
+ * Usage: java Headquarters <host> <port> [<directory>]
  * <p>
  * 
  * where <host> - host name of the registry server <port> - port number to which
- * registry server is listening. <name> - name of the GPSOffice
+ * registry server is listening. <directory> - directory of the event store
+ * (default events)
  * 
  * @author Shridhar Bhalekar
  * 
  */
-public class Headquarters {
+public class Headquarters implements HeadquartersRef {
+
+	/**
+	 * Name under which the headquarters is bound to the registry
+	 */
+	public static final String NAME = "Headquarters";
+
+	/**
+	 * Size in bytes of a segment of the event store
+	 */
+	private static final int segmentSize = 64 * 1024 * 1024;
+
+	/**
+	 * Time in milliseconds between two writes of the event store to the disk
+	 */
+	private static final long storeSyncInterval = 1000;
 
 	/**
 	 * Hostname of the machine running the Registry Server
@@ -58,7 +86,32 @@ public class Headquarters {
 	/**
 	 * Event listener to get the status updates from the GPSOffice
 	 */
-	private RemoteEventListener<PacketEvent> remoteListener;
+	private RemoteEventListener<PacketEventBatch> remoteListener;
+
+	/**
+	 * Directory of the event store
+	 */
+	private File directory;
+
+	/**
+	 * Store of the events reported by the offices
+	 */
+	private EventStore store;
+
+	/**
+	 * Live metrics of the network computed from the events
+	 */
+	private EventAggregator aggregator;
+
+	/**
+	 * Longest window in seconds of the live metrics
+	 */
+	private static final int maxWindow = 300;
+
+	/**
+	 * Timer writing the event store to the disk
+	 */
+	private ScheduledExecutorService scheduler;
 
 	/**
 	 * Constructs a new Headquarter object
@@ -66,6 +119,7 @@ public class Headquarters {
 	 * Command line arguments:
 	 * args[0] - registry server host name
 	 * args[1] - registry server port number
+	 * args[2] - optional directory of the event store
 	 *  
 	 * @param args Command Line arguments
 	 * 
@@ -77,9 +131,9 @@ public class Headquarters {
 	 *  		Thrown if any type of remote exception is thrown 
 	 */
 	public Headquarters(String[] args) throws IOException {
-		if (args.length != 2) {
+		if (args.length != 2 && args.length != 3) {
 			throw new IllegalArgumentException(
-					"Usage : java Headquarters <host> <port>");
+					"Usage : java Headquarters <host> <port> [<directory>]");
 		} else {
 			this.hostName = args[0];
 			try {
@@ -88,18 +142,43 @@ public class Headquarters {
 				throw new IllegalArgumentException(
 						"Invalid argument for port number");
 			}
+			this.directory = new File(args.length == 3 ? args[2] : "events");
 		}
 
 	}
 
+	/**
+	 * Constructs a headquarters which is neither exported nor bound to a 
+	 * registry and keeps no event store. The offices of a simulation report
+	 * to its listener with direct calls and its live metrics follow the 
+	 * virtual clock of the simulation.
+	 * 
+	 * @param clock source of the current time
+	 */
+	Headquarters(TimeSource clock) {
+		aggregator = new EventAggregator(maxWindow, null, clock);
+		remoteListener = createListener(false);
+	}
+
 	/**
 	 * Initializes the registry settings required to execute method on remote 
 	 * objects so as to add listener
 	 * 
-	 * @throws RemoteException
-	 * 				Thrown if any remote exception is encountered
+	 * @throws IOException
+	 * 				Thrown if the event store cannot be opened or any remote
+	 * 				exception is encountered
 	 */
-	public void initialize() throws RemoteException {
+	public void initialize() throws IOException {
+		store = new EventStore(directory, segmentSize);
+		aggregator = new EventAggregator(maxWindow, store);
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				store.force();
+			}
+		}, storeSyncInterval, storeSyncInterval, TimeUnit.MILLISECONDS);
+
 		try {
 		registry = new RegistryProxy(hostName, portNumber);
 		} catch(RemoteException e) {
@@ -116,19 +195,81 @@ public class Headquarters {
 		};
 		UnicastRemoteObject.exportObject(registryListener, 0);
 
-		remoteListener = new RemoteEventListener<PacketEvent>() {
-			@Override
-			public void report(long theSequenceNumber, PacketEvent theEvent)
-					throws RemoteException {
-				System.out.println(theEvent.getMessage());
-			}
-		};
+		remoteListener = createListener(true);
 		UnicastRemoteObject.exportObject(remoteListener, 0);
 		registryFilter = new RegistryEventFilter().reportType("GPSOfficeRef")
 				.reportBound();
 		registry.addEventListener(registryListener, registryFilter);
 		add();
 
+		// answer the queries about the trails of the packages
+		UnicastRemoteObject.exportObject(this, 0);
+		try {
+			registry.rebind(NAME, this);
+		} catch (Exception e) {
+			UnicastRemoteObject.unexportObject(this, true);
+			throw new IllegalArgumentException("Cannot bind " + NAME
+					+ " to the registry");
+		}
+	}
+
+	/**
+	 * Creates the listener which logs the events of the offices, appends them
+	 * to the event store if there is one and adds them to the live metrics
+	 * 
+	 * @param log true to print every event
+	 * @return listener of the batches of events
+	 */
+	private RemoteEventListener<PacketEventBatch> createListener(
+			final boolean log) {
+		return new RemoteEventListener<PacketEventBatch>() {
+			@Override
+			public void report(long theSequenceNumber, PacketEventBatch theEvent)
+					throws RemoteException {
+				for (PacketEvent event : theEvent.getEvents()) {
+					if (log) {
+						System.out.println(event.getMessage());
+					}
+					if (store != null) {
+						try {
+							store.append(event);
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+					aggregator.record(event);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns the listener to which the offices report their events
+	 * 
+	 * @return listener of the batches of events
+	 */
+	RemoteEventListener<PacketEventBatch> getListener() {
+		return remoteListener;
+	}
+
+	@Override
+	/**
+	 * Returns the events of a package from the event store, none if the
+	 * headquarters keeps no store
+	 */
+	public List<PacketEvent> getTrail(long trackNumber) {
+		if (store == null) {
+			return Collections.emptyList();
+		}
+		return store.getTrail(trackNumber);
+	}
+
+	@Override
+	/**
+	 * Returns the live metrics of the network over the latest seconds
+	 */
+	public NetworkStatistics getStatistics(int window) {
+		return aggregator.getStatistics(window);
 	}
 
 	/**
@@ -0,0 +1,44 @@
+
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * Remote interface for the RMI to specify that Headquarters is a distributed
+ * object which answers queries about the history of the packages and the 
+ * live load of the network
+ * 
+ * @author Shridhar Bhalekar
+ *
+ */
+public interface HeadquartersRef extends Remote {
+
+	/**
+	 * Returns the events of a package reported by the offices, which is the
+	 * trail of the package through the system
+	 * 
+	 * @param trackNumber tracking number of the package
+	 * 
+	 * @return events of the package ordered by time, empty if the package is
+	 * 			unknown
+	 * 
+	 * @throws RemoteException
+	 * 				Thrown if remote error encountered
+	 */
+	public List<PacketEvent> getTrail(long trackNumber) throws RemoteException;
+
+	/**
+	 * Returns the live metrics of the network over the latest seconds: the
+	 * deliveries per second, the loss rate, the end to end latency 
+	 * percentiles and the packets held by each office
+	 * 
+	 * @param window length of the window in seconds
+	 * 
+	 * @return snapshot of the metrics
+	 * 
+	 * @throws RemoteException
+	 * 				Thrown if remote error encountered
+	 */
+	public NetworkStatistics getStatistics(int window) throws RemoteException;
+}
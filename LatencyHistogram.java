@@ -0,0 +1,181 @@
+
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Class LatencyHistogram counts non negative values in logarithmic buckets.
+ * Values below eight have a bucket each, larger values are split in eight
+ * buckets per power of two, so a bucket is never wider than an eighth of
+ * its lower bound. Recording is lock free and the percentiles are answered
+ * from the bucket counts, so the memory used does not depend on the number
+ * of values recorded. A histogram is serializable so that a copy can be
+ * sent with a snapshot of metrics.
+ *
+ * @author Shridhar Bhalekar
+ *
+ */
+public class LatencyHistogram implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Number of buckets per power of two, as a power of two
+	 */
+	private static final int subBucketBits = 3;
+
+	/**
+	 * Number of buckets per power of two
+	 */
+	private static final int subBuckets = 1 << subBucketBits;
+
+	/**
+	 * Number of buckets covering every positive long value
+	 */
+	private static final int bucketCount = (63 - subBucketBits + 1)
+			* subBuckets;
+
+	/**
+	 * Number of values of each bucket
+	 */
+	private final AtomicLongArray counts;
+
+	/**
+	 * Number of values recorded
+	 */
+	private final AtomicLong total;
+
+	/**
+	 * Largest value recorded
+	 */
+	private final AtomicLong max;
+
+	/**
+	 * Creates an empty histogram
+	 */
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(bucketCount);
+		total = new AtomicLong();
+		max = new AtomicLong();
+	}
+
+	/**
+	 * Returns the bucket of a value
+	 * @param value non negative value
+	 * @return index of the bucket
+	 */
+	private static int bucket(long value) {
+		if (value < subBuckets) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - subBucketBits;
+		return (shift + 1) * subBuckets
+				+ (int) ((value >>> shift) & (subBuckets - 1));
+	}
+
+	/**
+	 * Returns the largest value of a bucket
+	 * @param bucket index of the bucket
+	 * @return upper bound of the bucket
+	 */
+	private static long upperBound(int bucket) {
+		if (bucket < subBuckets) {
+			return bucket;
+		}
+		int shift = bucket / subBuckets - 1;
+		long lower = (long) (subBuckets + bucket % subBuckets) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	/**
+	 * Records a value, negative values are counted as zero
+	 * @param value value to be recorded
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(bucket(value));
+		total.incrementAndGet();
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * Adds the values of another histogram to this one
+	 * @param other histogram to be added
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < bucketCount; i++) {
+			long count = other.counts.get(i);
+			if (count != 0) {
+				counts.addAndGet(i, count);
+			}
+		}
+		total.addAndGet(other.total.get());
+		long value = other.max.get();
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * Removes every recorded value
+	 */
+	public void reset() {
+		for (int i = 0; i < bucketCount; i++) {
+			counts.set(i, 0);
+		}
+		total.set(0);
+		max.set(0);
+	}
+
+	/**
+	 * Returns the number of values recorded
+	 * @return number of values
+	 */
+	public long getCount() {
+		return total.get();
+	}
+
+	/**
+	 * Returns the largest value recorded
+	 * @return largest value, 0 if no value was recorded
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns a percentile of the recorded values. The answer is the upper
+	 * bound of the bucket holding the percentile, capped by the largest
+	 * value recorded.
+	 *
+	 * @param percentile percentile between 0 and 100
+	 * @return value at the percentile, 0 if no value was recorded
+	 */
+	public long getPercentile(double percentile) {
+		if (percentile < 0.0 || percentile > 100.0) {
+			throw new IllegalArgumentException("Invalid percentile "
+					+ percentile);
+		}
+		long count = total.get();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+		long seen = 0;
+		for (int i = 0; i < bucketCount; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+}
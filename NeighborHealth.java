@@ -0,0 +1,180 @@
+
+
+/**
+ * Class NeighborHealth keeps the liveness of one neighbor of a GPSOffice:
+ * the number of consecutive failed calls, an exponentially weighted moving
+ * average of the call latency and a circuit breaker. The circuit opens 
+ * after too many consecutive failures and the neighbor is then skipped by
+ * the routing. Once the open period has elapsed a single probe is allowed
+ * through in the half open state, its success closes the circuit and its
+ * failure opens it again.
+ * 
+ * @author Shridhar Bhalekar
+ *
+ */
+public class NeighborHealth {
+
+	/**
+	 * States of the circuit breaker
+	 */
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * Weight of the latest call in the latency average
+	 */
+	private static final double latencyWeight = 0.2;
+
+	/**
+	 * Latest descriptor of the neighbor, used to probe it
+	 */
+	private volatile NeighborStorage neighbor;
+
+	/**
+	 * State of the circuit breaker, read without locking by the routing
+	 */
+	private volatile State state;
+
+	/**
+	 * Number of consecutive failed calls
+	 */
+	private int failures;
+
+	/**
+	 * Average latency of the calls in nanoseconds, negative until the first
+	 * successful call
+	 */
+	private double latency;
+
+	/**
+	 * Time in milliseconds the circuit was opened
+	 */
+	private long openedAt;
+
+	/**
+	 * Number of consecutive failures which opens the circuit
+	 */
+	private final int failureThreshold;
+
+	/**
+	 * Time in milliseconds the circuit stays open before a probe
+	 */
+	private final long openPeriod;
+
+	/**
+	 * Creates a new NeighborHealth with a closed circuit
+	 * 
+	 * @param neighbor descriptor of the neighbor
+	 * @param failureThreshold number of consecutive failures which opens 
+	 * 			the circuit
+	 * @param openPeriod time in milliseconds the circuit stays open before a
+	 * 			probe
+	 */
+	public NeighborHealth(NeighborStorage neighbor, int failureThreshold,
+			long openPeriod) {
+		this.neighbor = neighbor;
+		this.failureThreshold = failureThreshold;
+		this.openPeriod = openPeriod;
+		this.state = State.CLOSED;
+		this.latency = -1.0;
+	}
+
+	/**
+	 * Checks if the neighbor can be given packets
+	 * @return true if the circuit is closed
+	 */
+	public boolean isAvailable() {
+		return state == State.CLOSED;
+	}
+
+	/**
+	 * Records a successful call to the neighbor
+	 * 
+	 * @param nanos duration of the call in nanoseconds
+	 * @return true if the call closed the circuit
+	 */
+	public synchronized boolean recordSuccess(long nanos) {
+		failures = 0;
+		latency = latency < 0.0 ? nanos : latency + latencyWeight
+				* (nanos - latency);
+		if (state == State.CLOSED) {
+			return false;
+		}
+		state = State.CLOSED;
+		return true;
+	}
+
+	/**
+	 * Records a failed call to the neighbor
+	 * 
+	 * @param now current time in milliseconds
+	 * @return true if the call opened the circuit
+	 */
+	public synchronized boolean recordFailure(long now) {
+		failures++;
+		if (state == State.HALF_OPEN
+				|| (state == State.CLOSED && failures >= failureThreshold)) {
+			boolean opened = state == State.CLOSED;
+			state = State.OPEN;
+			openedAt = now;
+			return opened;
+		}
+		return false;
+	}
+
+	/**
+	 * Moves an open circuit whose open period has elapsed to the half open 
+	 * state. The caller then probes the neighbor and records the result.
+	 * 
+	 * @param now current time in milliseconds
+	 * @return true if the neighbor must be probed
+	 */
+	public synchronized boolean startProbe(long now) {
+		if (state == State.OPEN && now - openedAt >= openPeriod) {
+			state = State.HALF_OPEN;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Getter which returns the state of the circuit breaker
+	 * @return state of the circuit
+	 */
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * Getter which returns the number of consecutive failed calls
+	 * @return number of failures
+	 */
+	public synchronized int getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Getter which returns the average latency of the calls
+	 * @return latency in nanoseconds, negative if no call succeeded yet
+	 */
+	public synchronized double getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Getter which returns the latest descriptor of the neighbor
+	 * @return descriptor of the neighbor
+	 */
+	public NeighborStorage getNeighbor() {
+		return neighbor;
+	}
+
+	/**
+	 * Setter which refreshes the descriptor of the neighbor
+	 * @param neighbor latest descriptor of the neighbor
+	 */
+	public void setNeighbor(NeighborStorage neighbor) {
+		this.neighbor = neighbor;
+	}
+}
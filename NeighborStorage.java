@@ -1,14 +1,19 @@
 
 
+import java.io.Serializable;
+
 /**
  * Class NeighborStorage represents a single storage storing the GPSOffice and 
- * its attributes. These objects are used in the GPSOffice to store neighbors.
+ * its attributes. These objects are used in the GPSOffice to store neighbors
+ * and by the OfficeIndex to store and return the registered offices.
  * 
  * 
  * @author Shridhar Bhalekar
  *
  */
-public class NeighborStorage {
+public class NeighborStorage implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	/**
 	 * GPSOffice reference which is a neighbor.
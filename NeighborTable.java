@@ -0,0 +1,355 @@
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Class NeighborTable is an immutable snapshot of the neighbors of a 
+ * GPSOffice. The coordinates of the neighbors are kept in primitive arrays
+ * so that routing a packet reads the table without locking or allocating.
+ * Every change builds a new table which is then published by the office.
+ * 
+ * The neighbors are kept in a bounded max-heap ordered by their distance
+ * from the office owning the table, so the farthest neighbor is always the
+ * first one and is the one replaced when a closer office is offered to a 
+ * full table.
+ * 
+ * @author Shridhar Bhalekar
+ *
+ */
+public final class NeighborTable {
+
+	/**
+	 * Table without any neighbor
+	 */
+	public static final NeighborTable EMPTY = new NeighborTable(
+			new NeighborStorage[0], new double[0]);
+
+	/**
+	 * Neighbors of the table in heap order
+	 */
+	private final NeighborStorage[] entries;
+
+	/**
+	 * Distances of the neighbors from the office owning the table
+	 */
+	private final double[] distances;
+
+	/**
+	 * X coordinates of the neighbors
+	 */
+	private final double[] xValues;
+
+	/**
+	 * Y coordinates of the neighbors
+	 */
+	private final double[] yValues;
+
+	/**
+	 * Creates a table from a list of neighbors
+	 * 
+	 * @param neighbors neighbors of the table
+	 * @param x X coordinate of the office owning the table
+	 * @param y Y coordinate of the office owning the table
+	 */
+	public NeighborTable(List<NeighborStorage> neighbors, double x, double y) {
+		this.entries = neighbors.toArray(new NeighborStorage[neighbors.size()]);
+		this.distances = new double[entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			double dx = entries[i].getX() - x;
+			double dy = entries[i].getY() - y;
+			distances[i] = Math.sqrt(dx * dx + dy * dy);
+		}
+		for (int i = entries.length / 2 - 1; i >= 0; i--) {
+			siftDown(entries, distances, i);
+		}
+		this.xValues = xValuesOf(entries);
+		this.yValues = yValuesOf(entries);
+	}
+
+	/**
+	 * Creates a table owning the given arrays
+	 * 
+	 * @param entries neighbors of the table in heap order
+	 * @param distances distances of the neighbors
+	 */
+	private NeighborTable(NeighborStorage[] entries, double[] distances) {
+		this.entries = entries;
+		this.distances = distances;
+		this.xValues = xValuesOf(entries);
+		this.yValues = yValuesOf(entries);
+	}
+
+	/**
+	 * Returns the X coordinates of neighbors
+	 * @param entries neighbors
+	 * @return X coordinates in the same order
+	 */
+	private static double[] xValuesOf(NeighborStorage[] entries) {
+		double[] result = new double[entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			result[i] = entries[i].getX();
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the Y coordinates of neighbors
+	 * @param entries neighbors
+	 * @return Y coordinates in the same order
+	 */
+	private static double[] yValuesOf(NeighborStorage[] entries) {
+		double[] result = new double[entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			result[i] = entries[i].getY();
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the number of neighbors
+	 * @return number of neighbors
+	 */
+	public int size() {
+		return entries.length;
+	}
+
+	/**
+	 * Returns a neighbor of the table
+	 * @param index index of the neighbor
+	 * @return neighbor
+	 */
+	public NeighborStorage get(int index) {
+		return entries[index];
+	}
+
+	/**
+	 * Returns the X coordinate of a neighbor
+	 * @param index index of the neighbor
+	 * @return X coordinate
+	 */
+	public double getX(int index) {
+		return xValues[index];
+	}
+
+	/**
+	 * Returns the Y coordinate of a neighbor
+	 * @param index index of the neighbor
+	 * @return Y coordinate
+	 */
+	public double getY(int index) {
+		return yValues[index];
+	}
+
+	/**
+	 * Finds a neighbor by name
+	 * 
+	 * @param city name of the neighbor
+	 * @return index of the neighbor or -1 if it is not in the table
+	 */
+	public int indexOf(String city) {
+		for (int i = 0; i < entries.length; i++) {
+			if (entries[i].getCity().equals(city)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the neighbor closest to a location among those closer than a
+	 * limit. Distances are compared squared, the caller computes the limit
+	 * the same way so that a tie compares equal on both sides.
+	 * 
+	 * @param x X coordinate of the location
+	 * @param y Y coordinate of the location
+	 * @param limit squared distance a neighbor must be under to be chosen
+	 * 
+	 * @return index of the closest neighbor or -1 if no neighbor is closer 
+	 * 			than the limit
+	 */
+	public int closest(double x, double y, double limit) {
+		// squared distances keep the order and save the square roots
+		double min = limit;
+		int result = -1;
+		for (int i = 0; i < xValues.length; i++) {
+			double dx = xValues[i] - x;
+			double dy = yValues[i] - y;
+			double dist = dx * dx + dy * dy;
+			if (dist < min) {
+				min = dist;
+				result = i;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Ranks the neighbors closer to a location than a limit
+	 * 
+	 * @param x X coordinate of the location
+	 * @param y Y coordinate of the location
+	 * @param limit squared distance a neighbor must be under to be ranked
+	 * 
+	 * @return indexes of the neighbors closer than the limit, the closest 
+	 * 			first
+	 */
+	public int[] rank(double x, double y, double limit) {
+		double max = limit;
+		int[] ranked = new int[entries.length];
+		double[] keys = new double[entries.length];
+		int count = 0;
+		for (int i = 0; i < xValues.length; i++) {
+			double dx = xValues[i] - x;
+			double dy = yValues[i] - y;
+			double dist = dx * dx + dy * dy;
+			if (dist < max) {
+				// insertion sort, tables only hold a few neighbors
+				int j = count++;
+				while (j > 0 && keys[j - 1] > dist) {
+					keys[j] = keys[j - 1];
+					ranked[j] = ranked[j - 1];
+					j--;
+				}
+				keys[j] = dist;
+				ranked[j] = i;
+			}
+		}
+		return Arrays.copyOf(ranked, count);
+	}
+
+	/**
+	 * Offers a neighbor to the table. The neighbor is added if the table 
+	 * holds less than capacity neighbors, otherwise it replaces the farthest
+	 * neighbor if it is closer to the office owning the table.
+	 * 
+	 * @param neighbor neighbor to be offered
+	 * @param distance distance of the neighbor from the office owning the 
+	 * 			table
+	 * @param capacity maximum number of neighbors of the table
+	 * 
+	 * @return new table, or this table if the neighbor was not taken or is
+	 * 			already in the table
+	 */
+	public NeighborTable offer(NeighborStorage neighbor, double distance,
+			int capacity) {
+		if (indexOf(neighbor.getCity()) >= 0) {
+			return this;
+		}
+		NeighborStorage[] entriesCopy;
+		double[] distancesCopy;
+		if (entries.length < capacity) {
+			int last = entries.length;
+			entriesCopy = Arrays.copyOf(entries, last + 1);
+			distancesCopy = Arrays.copyOf(distances, last + 1);
+			entriesCopy[last] = neighbor;
+			distancesCopy[last] = distance;
+			siftUp(entriesCopy, distancesCopy, last);
+		} else if (entries.length > 0 && distance < distances[0]) {
+			entriesCopy = entries.clone();
+			distancesCopy = distances.clone();
+			entriesCopy[0] = neighbor;
+			distancesCopy[0] = distance;
+			siftDown(entriesCopy, distancesCopy, 0);
+		} else {
+			return this;
+		}
+		return new NeighborTable(entriesCopy, distancesCopy);
+	}
+
+	/**
+	 * Returns a new table with a neighbor removed
+	 * 
+	 * @param index index of the neighbor to be removed
+	 * @return new table
+	 */
+	public NeighborTable without(int index) {
+		int last = entries.length - 1;
+		NeighborStorage[] entriesCopy = Arrays.copyOf(entries, last);
+		double[] distancesCopy = Arrays.copyOf(distances, last);
+		if (index < last) {
+			// the last neighbor takes the free place and is moved into order
+			entriesCopy[index] = entries[last];
+			distancesCopy[index] = distances[last];
+			siftDown(entriesCopy, distancesCopy, index);
+			siftUp(entriesCopy, distancesCopy, index);
+		}
+		return new NeighborTable(entriesCopy, distancesCopy);
+	}
+
+	/**
+	 * Moves a neighbor towards the root of the heap while it is farther 
+	 * than its parent
+	 * 
+	 * @param entries neighbors in heap order
+	 * @param distances distances of the neighbors
+	 * @param index index of the neighbor to be moved
+	 */
+	private static void siftUp(NeighborStorage[] entries, double[] distances,
+			int index) {
+		while (index > 0) {
+			int parent = (index - 1) / 2;
+			if (distances[parent] >= distances[index]) {
+				return;
+			}
+			swap(entries, distances, parent, index);
+			index = parent;
+		}
+	}
+
+	/**
+	 * Moves a neighbor towards the leaves of the heap while one of its 
+	 * children is farther
+	 * 
+	 * @param entries neighbors in heap order
+	 * @param distances distances of the neighbors
+	 * @param index index of the neighbor to be moved
+	 */
+	private static void siftDown(NeighborStorage[] entries,
+			double[] distances, int index) {
+		while (true) {
+			int largest = index;
+			int left = 2 * index + 1;
+			int right = left + 1;
+			if (left < entries.length && distances[left] > distances[largest]) {
+				largest = left;
+			}
+			if (right < entries.length
+					&& distances[right] > distances[largest]) {
+				largest = right;
+			}
+			if (largest == index) {
+				return;
+			}
+			swap(entries, distances, index, largest);
+			index = largest;
+		}
+	}
+
+	/**
+	 * Swaps two neighbors of the heap
+	 * 
+	 * @param entries neighbors in heap order
+	 * @param distances distances of the neighbors
+	 * @param i index of the first neighbor
+	 * @param j index of the second neighbor
+	 */
+	private static void swap(NeighborStorage[] entries, double[] distances,
+			int i, int j) {
+		NeighborStorage entry = entries[i];
+		entries[i] = entries[j];
+		entries[j] = entry;
+		double distance = distances[i];
+		distances[i] = distances[j];
+		distances[j] = distance;
+	}
+
+	/**
+	 * Returns the neighbors as a list
+	 * @return new list of the neighbors
+	 */
+	public List<NeighborStorage> asList() {
+		return new ArrayList<NeighborStorage>(Arrays.asList(entries));
+	}
+}
@@ -0,0 +1,152 @@
+
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * Class NetworkStatistics is a snapshot of the live metrics kept by the
+ * headquarters over a sliding time window: the deliveries and losses of the
+ * window, the end to end latency percentiles of the packages delivered in
+ * the window and the number of packets currently held by each office.
+ *
+ * @author Shridhar Bhalekar
+ *
+ */
+public class NetworkStatistics implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Length of the window in seconds
+	 */
+	private int window;
+
+	/**
+	 * Number of packages delivered in the window
+	 */
+	private long delivered;
+
+	/**
+	 * Number of packages lost in the window
+	 */
+	private long lost;
+
+	/**
+	 * End to end latencies in milliseconds of the packages delivered in the
+	 * window, at the 50th, 90th and 99th percentile and the largest one
+	 */
+	private long latency50, latency90, latency99, latencyMax;
+
+	/**
+	 * Number of packets held by each office keyed by the office name
+	 */
+	private Map<String, Long> inFlight;
+
+	/**
+	 * Creates a NetworkStatistics object
+	 *
+	 * @param window length of the window in seconds
+	 * @param delivered number of packages delivered in the window
+	 * @param lost number of packages lost in the window
+	 * @param latencies histogram of the end to end latencies in milliseconds
+	 * @param inFlight number of packets held by each office
+	 */
+	public NetworkStatistics(int window, long delivered, long lost,
+			LatencyHistogram latencies, Map<String, Long> inFlight) {
+		this.window = window;
+		this.delivered = delivered;
+		this.lost = lost;
+		this.latency50 = latencies.getPercentile(50.0);
+		this.latency90 = latencies.getPercentile(90.0);
+		this.latency99 = latencies.getPercentile(99.0);
+		this.latencyMax = latencies.getMax();
+		this.inFlight = inFlight;
+	}
+
+	/**
+	 * Getter which returns the length of the window
+	 * @return window in seconds
+	 */
+	public int getWindow() {
+		return window;
+	}
+
+	/**
+	 * Getter which returns the number of packages delivered in the window
+	 * @return number of deliveries
+	 */
+	public long getDelivered() {
+		return delivered;
+	}
+
+	/**
+	 * Getter which returns the number of packages lost in the window
+	 * @return number of losses
+	 */
+	public long getLost() {
+		return lost;
+	}
+
+	/**
+	 * Returns the average number of deliveries per second over the window
+	 * @return deliveries per second
+	 */
+	public double getDeliveriesPerSecond() {
+		return (double) delivered / window;
+	}
+
+	/**
+	 * Returns the fraction of the packages finished in the window which
+	 * were lost
+	 * @return loss rate between 0 and 1
+	 */
+	public double getLossRate() {
+		long finished = delivered + lost;
+		return finished == 0 ? 0.0 : (double) lost / finished;
+	}
+
+	/**
+	 * Returns an end to end latency percentile of the window
+	 *
+	 * @param percentile 50, 90 or 99
+	 * @return latency in milliseconds
+	 */
+	public long getLatency(int percentile) {
+		switch (percentile) {
+		case 50:
+			return latency50;
+		case 90:
+			return latency90;
+		case 99:
+			return latency99;
+		default:
+			throw new IllegalArgumentException("Invalid percentile "
+					+ percentile);
+		}
+	}
+
+	/**
+	 * Getter which returns the largest end to end latency of the window
+	 * @return latency in milliseconds
+	 */
+	public long getLatencyMax() {
+		return latencyMax;
+	}
+
+	/**
+	 * Getter which returns the number of packets held by each office
+	 * @return packets in flight keyed by the office name
+	 */
+	public Map<String, Long> getInFlight() {
+		return inFlight;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("window=%ds delivered=%d (%.2f/s) lost=%d "
+				+ "lossRate=%.3f latency p50=%dms p90=%dms p99=%dms "
+				+ "max=%dms inFlight=%s", window, delivered,
+				getDeliveriesPerSecond(), lost, getLossRate(), latency50,
+				latency90, latency99, latencyMax, inFlight);
+	}
+}
@@ -0,0 +1,186 @@
+
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class NextHopCache remembers the routing decision of a GPSOffice for each
+ * quantized destination. Destinations are grouped in square cells and the 
+ * decision taken for one destination of a cell is reused for the other 
+ * destinations of the cell, so the cell size trades routing precision near 
+ * cell borders for hit rate. The cache is a fixed size direct mapped table,
+ * a new cell mapped to an occupied slot evicts the cell held there. 
+ * 
+ * Entries are immutable and tagged with the generation of the cache. Any
+ * change of the neighbors or the routing table starts a new generation, 
+ * which invalidates every entry at once without touching the table.
+ * 
+ * @author Shridhar Bhalekar
+ *
+ */
+public class NextHopCache {
+
+	/**
+	 * Decision returned for the cells whose packets are delivered locally
+	 */
+	public static final NeighborStorage DELIVER = new NeighborStorage(null,
+			"", 0.0, 0.0);
+
+	/**
+	 * Cached decision of one cell
+	 */
+	private static final class Entry {
+
+		private final long key;
+
+		private final int generation;
+
+		private final NeighborStorage hop;
+
+		private Entry(long key, int generation, NeighborStorage hop) {
+			this.key = key;
+			this.generation = generation;
+			this.hop = hop;
+		}
+	}
+
+	/**
+	 * Slots of the table, read and written without locking
+	 */
+	private final Entry[] slots;
+
+	/**
+	 * Number of bits of a slot index
+	 */
+	private final int shift;
+
+	/**
+	 * Side of a destination cell
+	 */
+	private final double cellSize;
+
+	/**
+	 * Current generation, entries of older generations are ignored
+	 */
+	private final AtomicInteger generation;
+
+	/**
+	 * Counters of the cache activity
+	 */
+	private final LongAdder hits, misses, evictions, invalidations;
+
+	/**
+	 * Creates a new NextHopCache
+	 * 
+	 * @param capacity number of cells the cache can hold, rounded up to a 
+	 * 			power of two
+	 * @param cellSize side of a destination cell
+	 */
+	public NextHopCache(int capacity, double cellSize) {
+		if (capacity < 1 || cellSize <= 0.0) {
+			throw new IllegalArgumentException("Invalid cache capacity "
+					+ capacity + " or cell size " + cellSize);
+		}
+		int bits = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+		this.slots = new Entry[1 << bits];
+		this.shift = 64 - bits;
+		this.cellSize = cellSize;
+		this.generation = new AtomicInteger();
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.evictions = new LongAdder();
+		this.invalidations = new LongAdder();
+	}
+
+	/**
+	 * Returns the key of the cell containing a destination
+	 * 
+	 * @param x X coordinate of the destination
+	 * @param y Y coordinate of the destination
+	 * @return key of the cell
+	 */
+	private long key(double x, double y) {
+		long cellX = (long) Math.floor(x / cellSize);
+		long cellY = (long) Math.floor(y / cellSize);
+		return (cellX << 32) ^ (cellY & 0xffffffffL);
+	}
+
+	/**
+	 * Returns the slot of a cell key
+	 * 
+	 * @param key key of the cell
+	 * @return index of the slot
+	 */
+	private int slot(long key) {
+		return slots.length == 1 ? 0
+				: (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+	}
+
+	/**
+	 * Returns the current generation. A decision must be computed from the
+	 * neighbors read after this call and stored with the returned value.
+	 * 
+	 * @return current generation
+	 */
+	public int generation() {
+		return generation.get();
+	}
+
+	/**
+	 * Looks up the decision cached for the cell of a destination
+	 * 
+	 * @param x X coordinate of the destination
+	 * @param y Y coordinate of the destination
+	 * 
+	 * @return neighbor to forward to, DELIVER if the packet is delivered 
+	 * 			locally, or null if no valid decision is cached
+	 */
+	public NeighborStorage get(double x, double y) {
+		long key = key(x, y);
+		Entry entry = slots[slot(key)];
+		if (entry != null && entry.key == key
+				&& entry.generation == generation.get()) {
+			hits.increment();
+			return entry.hop;
+		}
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * Caches the decision for the cell of a destination
+	 * 
+	 * @param x X coordinate of the destination
+	 * @param y Y coordinate of the destination
+	 * @param hop neighbor to forward to, null if the packet is delivered 
+	 * 			locally
+	 * @param generation generation read before computing the decision
+	 */
+	public void put(double x, double y, NeighborStorage hop, int generation) {
+		long key = key(x, y);
+		int index = slot(key);
+		Entry old = slots[index];
+		if (old != null && old.key != key
+				&& old.generation == this.generation.get()) {
+			evictions.increment();
+		}
+		slots[index] = new Entry(key, generation, hop == null ? DELIVER : hop);
+	}
+
+	/**
+	 * Invalidates every cached decision
+	 */
+	public void invalidate() {
+		generation.incrementAndGet();
+		invalidations.increment();
+	}
+
+	/**
+	 * Returns a snapshot of the counters of the cache
+	 * @return statistics of the cache
+	 */
+	public CacheStatistics getStatistics() {
+		return new CacheStatistics(slots.length, hits.sum(), misses.sum(),
+				evictions.sum(), invalidations.sum());
+	}
+}
@@ -0,0 +1,23 @@
+
+
+/**
+ * Exception thrown by a GPSOffice when its ingress queue is full and it 
+ * cannot accept another packet. The sender should slow down and retry later
+ * or send the packet through another office.
+ * 
+ * @author Shridhar Bhalekar
+ *
+ */
+public class OfficeBusyException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Creates a OfficeBusyException
+	 * 
+	 * @param message detail message
+	 */
+	public OfficeBusyException(String message) {
+		super(message);
+	}
+}
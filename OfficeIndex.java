@@ -0,0 +1,172 @@
+
+
+import java.io.IOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+
+import edu.rit.ds.registry.AlreadyBoundException;
+import edu.rit.ds.registry.RegistryEvent;
+import edu.rit.ds.registry.RegistryEventFilter;
+import edu.rit.ds.registry.RegistryEventListener;
+import edu.rit.ds.registry.RegistryProxy;
+
+/**
+ * Class OfficeIndex is the shared spatial index of the GPSOffice locations.
+ * Every office registers its reference and location when it starts and asks
+ * the index for its nearest neighbors. The offices already bound when the
+ * index starts are loaded from the registry. Offices unbound from the 
+ * registry are removed from the index.
+ * 
+ * <b>This class uses the RIT Computer Science Library<b>
+ * 
+ * To register the index with the registry use the following command before
+ * starting the offices
+ * <p>
+ * Usage : java Start OfficeIndex <host> <port> [<cell size>]
+ * <p>
+ * where <host> - host name of the registry server
+ * 		 <port> - port number to which registry server is listening.
+ * 		 <cell size> - side of a cell of the spatial grid (default 10)
+ * 
+ * @author Shridhar Bhalekar
+ *
+ */
+public class OfficeIndex implements OfficeIndexRef {
+
+	/**
+	 * Name under which the index is bound to the registry
+	 */
+	public static final String NAME = "OfficeIndex";
+
+	/**
+	 * Proxy for the RIT Computer Science Registry Server. 
+	 */
+	private RegistryProxy registryProxy;
+
+	/**
+	 * Event listener on the Registry Server 
+	 */
+	private RegistryEventListener registryEventListener;
+
+	/**
+	 * Grid holding the registered offices
+	 */
+	private SpatialGrid grid;
+
+	/**
+	 * Constructs a new OfficeIndex object
+	 * 
+	 * Command line arguments:
+	 * args[0] - registry server host name
+	 * args[1] - registry server port number
+	 * args[2] - optional side of a grid cell
+	 * 
+	 * @param args Command Line arguments
+	 * 
+	 * @exception IllegalArgumentException
+	 * 			Thrown if command line arguments are not according to 
+	 *  		the requirements.
+	 *  
+	 *  @exception IOException
+	 *  		Thrown if any type of remote exception is thrown 
+	 */
+	public OfficeIndex(String[] args) throws IOException {
+		if (args.length != 2 && args.length != 3) {
+			System.out
+					.println("Usage: java Start OfficeIndex <host> <port> [<cell size>]");
+			throw new IllegalArgumentException("Invalid number of arguments");
+		}
+		String hostName = args[0];
+		int portNumber;
+		double cellSize = 10.0;
+		try {
+			portNumber = Integer.parseInt(args[1]);
+			if (args.length == 3) {
+				cellSize = Double.parseDouble(args[2]);
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(
+					"Invalid argument for port number or cell size");
+		}
+		grid = new SpatialGrid(cellSize);
+
+		try {
+			registryProxy = new RegistryProxy(hostName, portNumber);
+		} catch (RemoteException e) {
+			throw new IllegalArgumentException("Cannot connact to " + hostName
+					+ ":" + portNumber);
+		}
+		UnicastRemoteObject.exportObject(this, 0);
+		try {
+			registryProxy.bind(NAME, this);
+		} catch (AlreadyBoundException abe) {
+			try {
+				UnicastRemoteObject.unexportObject(this, true);
+			} catch (NoSuchObjectException nso1) {
+			}
+			throw new IllegalArgumentException(NAME
+					+ " already bound to the registry");
+		}
+
+		// drop the offices which leave the registry
+		registryEventListener = new RegistryEventListener() {
+			@Override
+			public void report(long arg0, RegistryEvent event)
+					throws RemoteException {
+				if (event.objectWasUnbound()) {
+					grid.remove(event.objectName());
+				}
+			}
+		};
+		UnicastRemoteObject.exportObject(registryEventListener, 0);
+		registryProxy.addEventListener(registryEventListener,
+				new RegistryEventFilter().reportType("GPSOfficeRef")
+						.reportUnbound());
+		loadOffices();
+	}
+
+	/**
+	 * Adds the offices bound to the registry before the index started, which
+	 * registered with no index. Offices which cannot be reached are left out.
+	 * 
+	 * @throws RemoteException
+	 * 				Thrown if the registry cannot be listed
+	 */
+	private void loadOffices() throws RemoteException {
+		for (String name : registryProxy.list("GPSOfficeRef")) {
+			try {
+				GPSOfficeRef office = (GPSOfficeRef) registryProxy.lookup(name);
+				grid.add(office.getDescriptor());
+			} catch (Exception e) {
+				// the office left the registry meanwhile
+			}
+		}
+	}
+
+	@Override
+	/**
+	 * Adds an office to the grid
+	 */
+	public void register(NeighborStorage office) {
+		grid.add(office);
+	}
+
+	@Override
+	/**
+	 * Removes an office from the grid
+	 */
+	public void unregister(String city) {
+		grid.remove(city);
+	}
+
+	@Override
+	/**
+	 * Finds the offices nearest to a location in the grid
+	 */
+	public List<NeighborStorage> nearest(double xValue, double yValue,
+			int count, String exclude) {
+		return grid.nearest(xValue, yValue, count, exclude);
+	}
+}
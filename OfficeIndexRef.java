@@ -0,0 +1,53 @@
+
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * Remote interface for the RMI to specify that OfficeIndex is a distributed
+ * object in the Geographic Package System. The index keeps the location of
+ * every GPSOffice so that an office finds its nearest neighbors with a single
+ * query instead of looking up every office bound in the registry.
+ * 
+ * @author Shridhar Bhalekar
+ *
+ */
+public interface OfficeIndexRef extends Remote {
+
+	/**
+	 * Adds an office to the index, replacing the office of the same name
+	 * 
+	 * @param office reference, name and location of the office
+	 * 
+	 * @throws RemoteException
+	 * 				Thrown if remote error encountered
+	 */
+	public void register(NeighborStorage office) throws RemoteException;
+
+	/**
+	 * Removes an office from the index
+	 * 
+	 * @param city name of the office
+	 * 
+	 * @throws RemoteException
+	 * 				Thrown if remote error encountered
+	 */
+	public void unregister(String city) throws RemoteException;
+
+	/**
+	 * Finds the offices nearest to a location
+	 * 
+	 * @param xValue X coordinate of the location
+	 * @param yValue Y coordinate of the location
+	 * @param count maximum number of offices to be returned
+	 * @param exclude name of an office to be left out, may be null
+	 * 
+	 * @return offices ordered from the nearest to the farthest
+	 * 
+	 * @throws RemoteException
+	 * 				Thrown if remote error encountered
+	 */
+	public List<NeighborStorage> nearest(double xValue, double yValue,
+			int count, String exclude) throws RemoteException;
+}
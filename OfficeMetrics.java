@@ -0,0 +1,269 @@
+
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class OfficeMetrics instruments the hot path of a GPSOffice. The packet
+ * counters are striped so that the worker threads do not contend on them,
+ * the times are kept in lock free histograms and the gauges are read from
+ * the ingress queue, the executor and the health of the neighbors of the
+ * office when asked for. The 
+ * metrics are read through JMX or copied into an OfficeStatistics snapshot
+ * for a remote caller.
+ * 
+ * @author Shridhar Bhalekar
+ *
+ */
+public class OfficeMetrics implements OfficeMetricsMXBean {
+
+	/**
+	 * Counters of the packets received, forwarded, delivered and lost
+	 */
+	private final LongAdder received, forwarded, delivered, lost;
+
+	/**
+	 * Times in nanoseconds taken to choose the next hop of a packet
+	 */
+	private final LatencyHistogram routeTimes;
+
+	/**
+	 * Times in nanoseconds taken to report an event
+	 */
+	private final LatencyHistogram fanOutTimes;
+
+	/**
+	 * Times in nanoseconds taken by the batch forwards keyed by the name of
+	 * the neighbor
+	 */
+	private final ConcurrentMap<String, LatencyHistogram> forwardTimes;
+
+	/**
+	 * Maximum number of packets held by the office
+	 */
+	private final int capacity;
+
+	/**
+	 * Admission control of the ingress queue of the office
+	 */
+	private final Semaphore ingress;
+
+	/**
+	 * Executor running the tasks of the office
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * Health of the neighbors of the office keyed by their names
+	 */
+	private final Map<String, NeighborHealth> health;
+
+	/**
+	 * Creates the metrics of an office
+	 * 
+	 * @param capacity maximum number of packets held by the office
+	 * @param ingress admission control of the ingress queue
+	 * @param executor executor running the tasks of the office
+	 * @param health health of the neighbors keyed by their names
+	 */
+	public OfficeMetrics(int capacity, Semaphore ingress,
+			ExecutorService executor, Map<String, NeighborHealth> health) {
+		this.received = new LongAdder();
+		this.forwarded = new LongAdder();
+		this.delivered = new LongAdder();
+		this.lost = new LongAdder();
+		this.routeTimes = new LatencyHistogram();
+		this.fanOutTimes = new LatencyHistogram();
+		this.forwardTimes = new ConcurrentHashMap<String, LatencyHistogram>();
+		this.capacity = capacity;
+		this.ingress = ingress;
+		this.executor = executor;
+		this.health = health;
+	}
+
+	/**
+	 * Records the time taken to choose the next hop of a packet
+	 * @param nanos time in nanoseconds
+	 */
+	public void routed(long nanos) {
+		routeTimes.record(nanos);
+	}
+
+	/**
+	 * Records an event reported by the office and the time taken to report
+	 * it. Arrivals, deliveries and losses are counted.
+	 * 
+	 * @param status status reported by the event
+	 * @param nanos time in nanoseconds
+	 */
+	public void reported(PacketEvent.Status status, long nanos) {
+		fanOutTimes.record(nanos);
+		switch (status) {
+		case ARRIVED:
+			received.increment();
+			break;
+		case DELIVERED:
+			delivered.increment();
+			break;
+		case LOST:
+			lost.increment();
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Records a batch forward taken by a neighbor
+	 * 
+	 * @param neighbor name of the neighbor
+	 * @param accepted number of packets the neighbor took
+	 * @param nanos time in nanoseconds taken by the call
+	 */
+	public void forwarded(String neighbor, int accepted, long nanos) {
+		forwarded.add(accepted);
+		LatencyHistogram times = forwardTimes.get(neighbor);
+		if (times == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			times = forwardTimes.putIfAbsent(neighbor, created);
+			if (times == null) {
+				times = created;
+			}
+		}
+		times.record(nanos);
+	}
+
+	/**
+	 * Drops the forward times of a neighbor which left the network
+	 * @param neighbor name of the neighbor
+	 */
+	public void forget(String neighbor) {
+		forwardTimes.remove(neighbor);
+	}
+
+	@Override
+	public long getReceived() {
+		return received.sum();
+	}
+
+	@Override
+	public long getForwarded() {
+		return forwarded.sum();
+	}
+
+	@Override
+	public long getDelivered() {
+		return delivered.sum();
+	}
+
+	@Override
+	public long getLost() {
+		return lost.sum();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return capacity - ingress.availablePermits();
+	}
+
+	@Override
+	public int getActiveThreads() {
+		if (executor instanceof ThreadPoolExecutor) {
+			return ((ThreadPoolExecutor) executor).getActiveCount();
+		}
+		return -1;
+	}
+
+	@Override
+	public long getRouteTime50() {
+		return routeTimes.getPercentile(50.0);
+	}
+
+	@Override
+	public long getRouteTime99() {
+		return routeTimes.getPercentile(99.0);
+	}
+
+	@Override
+	public long getFanOutTime50() {
+		return fanOutTimes.getPercentile(50.0);
+	}
+
+	@Override
+	public long getFanOutTime99() {
+		return fanOutTimes.getPercentile(99.0);
+	}
+
+	@Override
+	public Map<String, Long> getForwardTime99() {
+		Map<String, Long> result = new HashMap<String, Long>();
+		for (Map.Entry<String, LatencyHistogram> entry : forwardTimes
+				.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().getPercentile(99.0));
+		}
+		return result;
+	}
+
+	@Override
+	public Map<String, String> getNeighborStates() {
+		Map<String, String> result = new HashMap<String, String>();
+		for (Map.Entry<String, NeighborHealth> entry : health.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().getState().name());
+		}
+		return result;
+	}
+
+	@Override
+	public Map<String, Integer> getNeighborFailures() {
+		Map<String, Integer> result = new HashMap<String, Integer>();
+		for (Map.Entry<String, NeighborHealth> entry : health.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().getFailures());
+		}
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getNeighborLatencies() {
+		Map<String, Long> result = new HashMap<String, Long>();
+		for (Map.Entry<String, NeighborHealth> entry : health.entrySet()) {
+			result.put(entry.getKey(), Math.round(entry.getValue()
+					.getLatency()));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a copy of the metrics which can be sent to a remote caller
+	 * @return snapshot of the metrics
+	 */
+	public OfficeStatistics snapshot() {
+		Map<String, LatencyHistogram> forwards = 
+			new HashMap<String, LatencyHistogram>();
+		for (Map.Entry<String, LatencyHistogram> entry : forwardTimes
+				.entrySet()) {
+			forwards.put(entry.getKey(), copyOf(entry.getValue()));
+		}
+		return new OfficeStatistics(getReceived(), getForwarded(),
+				getDelivered(), getLost(), getQueueDepth(),
+				getActiveThreads(), copyOf(routeTimes), copyOf(fanOutTimes),
+				forwards, getNeighborStates(), getNeighborFailures(),
+				getNeighborLatencies());
+	}
+
+	/**
+	 * Returns a copy of a histogram which no longer changes
+	 * @param histogram histogram to be copied
+	 * @return copy of the histogram
+	 */
+	private static LatencyHistogram copyOf(LatencyHistogram histogram) {
+		LatencyHistogram copy = new LatencyHistogram();
+		copy.add(histogram);
+		return copy;
+	}
+}
@@ -0,0 +1,104 @@
+
+
+import java.util.Map;
+
+/**
+ * Interface OfficeMetricsMXBean is the management interface through which
+ * the metrics of a GPSOffice are read with JMX. Counters are totals since
+ * the office started, times are in nanoseconds.
+ * 
+ * @author Shridhar Bhalekar
+ *
+ */
+public interface OfficeMetricsMXBean {
+
+	/**
+	 * Returns the number of packets which arrived at the office
+	 * @return number of packets
+	 */
+	public long getReceived();
+
+	/**
+	 * Returns the number of packets taken by the neighbors
+	 * @return number of packets
+	 */
+	public long getForwarded();
+
+	/**
+	 * Returns the number of packets delivered by the office
+	 * @return number of packets
+	 */
+	public long getDelivered();
+
+	/**
+	 * Returns the number of packets lost by the office
+	 * @return number of packets
+	 */
+	public long getLost();
+
+	/**
+	 * Returns the number of packets held in the ingress queue
+	 * @return number of packets
+	 */
+	public int getQueueDepth();
+
+	/**
+	 * Returns the number of worker threads running a task
+	 * @return number of threads, -1 if the executor does not count them
+	 */
+	public int getActiveThreads();
+
+	/**
+	 * Returns the median time taken to choose the next hop of a packet
+	 * @return time in nanoseconds
+	 */
+	public long getRouteTime50();
+
+	/**
+	 * Returns the 99th percentile of the time taken to choose the next hop
+	 * of a packet
+	 * @return time in nanoseconds
+	 */
+	public long getRouteTime99();
+
+	/**
+	 * Returns the median time taken to report an event to the customer and
+	 * queue it for the headquarters
+	 * @return time in nanoseconds
+	 */
+	public long getFanOutTime50();
+
+	/**
+	 * Returns the 99th percentile of the time taken to report an event to
+	 * the customer and queue it for the headquarters
+	 * @return time in nanoseconds
+	 */
+	public long getFanOutTime99();
+
+	/**
+	 * Returns the 99th percentile of the time taken by a batch forward,
+	 * per neighbor
+	 * @return time in nanoseconds keyed by the name of the neighbor
+	 */
+	public Map<String, Long> getForwardTime99();
+
+	/**
+	 * Returns the state of the circuit breaker of each neighbor
+	 * @return CLOSED, OPEN or HALF_OPEN keyed by the name of the neighbor
+	 */
+	public Map<String, String> getNeighborStates();
+
+	/**
+	 * Returns the number of consecutive failed calls to each neighbor
+	 * @return number of failures keyed by the name of the neighbor
+	 */
+	public Map<String, Integer> getNeighborFailures();
+
+	/**
+	 * Returns the moving average of the latency of the calls to each 
+	 * neighbor
+	 * @return time in nanoseconds keyed by the name of the neighbor, -1 if 
+	 * 			no call succeeded yet
+	 */
+	public Map<String, Long> getNeighborLatencies();
+}
@@ -0,0 +1,227 @@
+
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * Class OfficeStatistics is a snapshot of the metrics of a GPSOffice sent
+ * to a remote caller: the packet counters, the ingress queue depth, the
+ * active worker threads, the histograms of the hot path times in
+ * nanoseconds and the health of the neighbors.
+ * 
+ * @author Shridhar Bhalekar
+ *
+ */
+public class OfficeStatistics implements Serializable {
+
+	private static final long serialVersionUID = 2L;
+
+	/**
+	 * Numbers of packets received, forwarded, delivered and lost
+	 */
+	private long received, forwarded, delivered, lost;
+
+	/**
+	 * Number of packets held in the ingress queue
+	 */
+	private int queueDepth;
+
+	/**
+	 * Number of worker threads running a task, -1 if not counted
+	 */
+	private int activeThreads;
+
+	/**
+	 * Times taken to choose the next hop of a packet
+	 */
+	private LatencyHistogram routeTimes;
+
+	/**
+	 * Times taken to report an event
+	 */
+	private LatencyHistogram fanOutTimes;
+
+	/**
+	 * Times taken by the batch forwards keyed by the name of the neighbor
+	 */
+	private Map<String, LatencyHistogram> forwardTimes;
+
+	/**
+	 * States of the circuit breakers keyed by the name of the neighbor
+	 */
+	private Map<String, String> neighborStates;
+
+	/**
+	 * Consecutive failed calls keyed by the name of the neighbor
+	 */
+	private Map<String, Integer> neighborFailures;
+
+	/**
+	 * Average call latencies in nanoseconds keyed by the name of the 
+	 * neighbor
+	 */
+	private Map<String, Long> neighborLatencies;
+
+	/**
+	 * Creates an OfficeStatistics object
+	 * 
+	 * @param received number of packets which arrived at the office
+	 * @param forwarded number of packets taken by the neighbors
+	 * @param delivered number of packets delivered by the office
+	 * @param lost number of packets lost by the office
+	 * @param queueDepth number of packets held in the ingress queue
+	 * @param activeThreads number of worker threads running a task
+	 * @param routeTimes copy of the histogram of the routing times
+	 * @param fanOutTimes copy of the histogram of the event reporting times
+	 * @param forwardTimes copies of the histograms of the forward times
+	 * @param neighborStates states of the circuit breakers of the neighbors
+	 * @param neighborFailures consecutive failed calls to the neighbors
+	 * @param neighborLatencies average call latencies of the neighbors
+	 */
+	public OfficeStatistics(long received, long forwarded, long delivered,
+			long lost, int queueDepth, int activeThreads,
+			LatencyHistogram routeTimes, LatencyHistogram fanOutTimes,
+			Map<String, LatencyHistogram> forwardTimes,
+			Map<String, String> neighborStates,
+			Map<String, Integer> neighborFailures,
+			Map<String, Long> neighborLatencies) {
+		this.received = received;
+		this.forwarded = forwarded;
+		this.delivered = delivered;
+		this.lost = lost;
+		this.queueDepth = queueDepth;
+		this.activeThreads = activeThreads;
+		this.routeTimes = routeTimes;
+		this.fanOutTimes = fanOutTimes;
+		this.forwardTimes = forwardTimes;
+		this.neighborStates = neighborStates;
+		this.neighborFailures = neighborFailures;
+		this.neighborLatencies = neighborLatencies;
+	}
+
+	/**
+	 * Getter which returns the number of packets which arrived at the office
+	 * @return number of packets
+	 */
+	public long getReceived() {
+		return received;
+	}
+
+	/**
+	 * Getter which returns the number of packets taken by the neighbors
+	 * @return number of packets
+	 */
+	public long getForwarded() {
+		return forwarded;
+	}
+
+	/**
+	 * Getter which returns the number of packets delivered by the office
+	 * @return number of packets
+	 */
+	public long getDelivered() {
+		return delivered;
+	}
+
+	/**
+	 * Getter which returns the number of packets lost by the office
+	 * @return number of packets
+	 */
+	public long getLost() {
+		return lost;
+	}
+
+	/**
+	 * Getter which returns the number of packets held in the ingress queue
+	 * @return number of packets
+	 */
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	/**
+	 * Getter which returns the number of worker threads running a task
+	 * @return number of threads, -1 if the executor does not count them
+	 */
+	public int getActiveThreads() {
+		return activeThreads;
+	}
+
+	/**
+	 * Getter which returns the times taken to choose the next hop of a 
+	 * packet
+	 * @return histogram of the times in nanoseconds
+	 */
+	public LatencyHistogram getRouteTimes() {
+		return routeTimes;
+	}
+
+	/**
+	 * Getter which returns the times taken to report an event to the 
+	 * customer and queue it for the headquarters
+	 * @return histogram of the times in nanoseconds
+	 */
+	public LatencyHistogram getFanOutTimes() {
+		return fanOutTimes;
+	}
+
+	/**
+	 * Getter which returns the times taken by the batch forwards
+	 * @return histograms of the times in nanoseconds keyed by the name of
+	 * 			the neighbor
+	 */
+	public Map<String, LatencyHistogram> getForwardTimes() {
+		return forwardTimes;
+	}
+
+	/**
+	 * Getter which returns the states of the circuit breakers
+	 * @return CLOSED, OPEN or HALF_OPEN keyed by the name of the neighbor
+	 */
+	public Map<String, String> getNeighborStates() {
+		return neighborStates;
+	}
+
+	/**
+	 * Getter which returns the consecutive failed calls to the neighbors
+	 * @return number of failures keyed by the name of the neighbor
+	 */
+	public Map<String, Integer> getNeighborFailures() {
+		return neighborFailures;
+	}
+
+	/**
+	 * Getter which returns the average latencies of the calls to the 
+	 * neighbors
+	 * @return time in nanoseconds keyed by the name of the neighbor, -1 if
+	 * 			no call succeeded yet
+	 */
+	public Map<String, Long> getNeighborLatencies() {
+		return neighborLatencies;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder forwards = new StringBuilder();
+		for (Map.Entry<String, LatencyHistogram> entry : forwardTimes
+				.entrySet()) {
+			forwards.append(String.format(" %s p50=%dns p99=%dns", entry
+					.getKey(), entry.getValue().getPercentile(50.0), entry
+					.getValue().getPercentile(99.0)));
+		}
+		StringBuilder health = new StringBuilder();
+		for (Map.Entry<String, String> entry : neighborStates.entrySet()) {
+			health.append(String.format(" %s %s failures=%d latency=%dns",
+					entry.getKey(), entry.getValue(), neighborFailures
+							.get(entry.getKey()), neighborLatencies.get(entry
+							.getKey())));
+		}
+		return String.format("received=%d forwarded=%d delivered=%d lost=%d "
+				+ "queue=%d active=%d route p50=%dns p99=%dns fanout "
+				+ "p50=%dns p99=%dns forward%s neighbors%s", received,
+				forwarded, delivered, lost, queueDepth, activeThreads,
+				routeTimes.getPercentile(50.0), routeTimes.getPercentile(99.0),
+				fanOutTimes.getPercentile(50.0), fanOutTimes
+						.getPercentile(99.0), forwards, health);
+	}
+}
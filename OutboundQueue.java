@@ -0,0 +1,155 @@
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class OutboundQueue collects the packets which a GPSOffice has decided to
+ * forward to one particular neighbor. Instead of making one remote call per
+ * packet, the office drains the queue and hands over all the pending packets
+ * with a single batch call once the queue is full or the batch delay expires.
+ *
+ * @author Shridhar Bhalekar
+ *
+ */
+public class OutboundQueue {
+
+	/**
+	 * Neighbor to which the queued packets are to be forwarded
+	 */
+	private NeighborStorage neighbor;
+
+	/**
+	 * Packets waiting to be forwarded to the neighbor
+	 */
+	private List<Packet> pending;
+
+	/**
+	 * Maximum number of packets sent in one batch
+	 */
+	private int batchSize;
+
+	/**
+	 * True if a timed flush is already scheduled for this queue
+	 */
+	private boolean flushScheduled;
+
+	/**
+	 * Number of failed attempts to forward the current batch
+	 */
+	private int failures;
+
+	/**
+	 * Number of consecutive batches the neighbor refused because it was busy
+	 */
+	private int refusals;
+
+	/**
+	 * Creates a new OutboundQueue
+	 *
+	 * @param neighbor neighbor to which the packets are forwarded
+	 * @param batchSize maximum number of packets sent in one batch
+	 */
+	public OutboundQueue(NeighborStorage neighbor, int batchSize) {
+		this.neighbor = neighbor;
+		this.batchSize = batchSize;
+		this.pending = new ArrayList<Packet>(batchSize);
+		this.flushScheduled = false;
+		this.failures = 0;
+		this.refusals = 0;
+	}
+
+	/**
+	 * Adds a packet to the queue. The neighbor reference is refreshed on every
+	 * add so that a queue always forwards to the latest reference of the office.
+	 *
+	 * @param packet packet to be forwarded
+	 * @param office latest neighbor reference
+	 *
+	 * @return true if the queue has reached the batch size and must be flushed
+	 */
+	public synchronized boolean add(Packet packet, NeighborStorage office) {
+		this.neighbor = office;
+		pending.add(packet);
+		return pending.size() >= batchSize;
+	}
+
+	/**
+	 * Puts back packets which the neighbor refused to accept. They are placed
+	 * ahead of the packets queued in the meantime to keep the original order.
+	 *
+	 * @param packets packets to be forwarded again
+	 */
+	public synchronized void requeue(List<Packet> packets) {
+		pending.addAll(0, packets);
+	}
+
+	/**
+	 * Marks the queue as having a timed flush pending.
+	 *
+	 * @return true if no timed flush was scheduled before this call
+	 */
+	public synchronized boolean markFlushScheduled() {
+		if (flushScheduled || pending.isEmpty()) {
+			return false;
+		}
+		flushScheduled = true;
+		return true;
+	}
+
+	/**
+	 * Removes and returns all the pending packets of the queue
+	 *
+	 * @return list of packets to be forwarded, empty if nothing is pending
+	 */
+	public synchronized List<Packet> drain() {
+		flushScheduled = false;
+		if (pending.isEmpty()) {
+			return new ArrayList<Packet>(0);
+		}
+		List<Packet> batch = pending;
+		pending = new ArrayList<Packet>(batchSize);
+		return batch;
+	}
+
+	/**
+	 * Records a failed attempt to forward a batch to the neighbor
+	 * 
+	 * @return number of consecutive failed attempts
+	 */
+	public synchronized int recordFailure() {
+		return ++failures;
+	}
+
+	/**
+	 * Clears the failed attempts once a batch went through or was given up
+	 */
+	public synchronized void resetFailures() {
+		failures = 0;
+	}
+
+	/**
+	 * Records a batch which the neighbor refused because it was busy
+	 * 
+	 * @return number of consecutive refused batches
+	 */
+	public synchronized int recordRefusal() {
+		return ++refusals;
+	}
+
+	/**
+	 * Clears the refused batches once the neighbor took packets again or 
+	 * the refused packets were given up
+	 */
+	public synchronized void resetRefusals() {
+		refusals = 0;
+	}
+
+	/**
+	 * Getter which returns the neighbor of this queue
+	 * @return neighbor to which packets are forwarded
+	 */
+	public synchronized NeighborStorage getNeighbor() {
+		return this.neighbor;
+	}
+}
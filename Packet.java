@@ -1,6 +1,9 @@
 
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
 import edu.rit.ds.RemoteEventListener;
 
@@ -10,12 +13,18 @@ import edu.rit.ds.RemoteEventListener;
  * the GPSOffice creates a Packet Object and this object is routed across the 
  * system.
  * 
+ * The Packet writes its own wire format instead of relying on default 
+ * serialization. The fields are written in a fixed order: tracking number,
+ * X coordinate, Y coordinate, hop count and the customer listener. The class
+ * descriptor lists no fields, which makes a single packet smaller; in a batch
+ * the descriptor is sent once either way.
+ * 
  * @author Shridhar Bhalekar
  *
  */
-public class Packet implements Serializable {
+public class Packet implements Externalizable {
 
-	private static final long serialVersionUID = 1L;
+	private static final long serialVersionUID = 2L;
 	
 	/**
 	 * Tracking number of the current packet
@@ -32,11 +41,29 @@ public class Packet implements Serializable {
 	 */
 	private double yValue;
 	
+	/**
+	 * Number of offices which accepted the packet so far
+	 */
+	private int hops;
+	
 	/**
 	 * Remote event listener of the Customer trying to send the packet
 	 */
 	private RemoteEventListener<PacketEvent> remoteEventListener;
 
+	/**
+	 * Sequence number of the packet in the journal of the office holding it,
+	 * local to that office and never written to the wire
+	 */
+	private long journalSequence = -1;
+
+	/**
+	 * Creates an empty Packet Object, used when the packet is read from the
+	 * wire
+	 */
+	public Packet() {
+	}
+
 	/**
 	 * Creates a Packet Object
 	 * 
@@ -77,6 +104,21 @@ public class Packet implements Serializable {
 		return yValue;
 	}
 
+	/**
+	 * Getter which returns the number of offices which accepted the packet
+	 * @return hop count
+	 */
+	public int getHops() {
+		return hops;
+	}
+
+	/**
+	 * Counts one more office which accepted the packet
+	 */
+	public void incrementHops() {
+		hops++;
+	}
+
 	/**
 	 * Getter which returns the remote event listener of customer
 	 * @return remote eent listener
@@ -84,4 +126,59 @@ public class Packet implements Serializable {
 	public RemoteEventListener<PacketEvent> getListener() {
 		return this.remoteEventListener;
 	}
+
+	/**
+	 * Getter which returns the sequence number of the packet in the journal
+	 * of the office holding it
+	 * @return sequence number, -1 if the packet is not journaled
+	 */
+	public long getJournalSequence() {
+		return journalSequence;
+	}
+
+	/**
+	 * Setter which sets the sequence number of the packet in the journal of
+	 * the office holding it
+	 * @param journalSequence sequence number
+	 */
+	public void setJournalSequence(long journalSequence) {
+		this.journalSequence = journalSequence;
+	}
+
+	/**
+	 * Writes the packet fields in the wire order
+	 * 
+	 * @param out stream to which the packet is written
+	 * 
+	 * @throws IOException
+	 * 				Thrown if the packet cannot be written
+	 */
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeLong(trackingNumber);
+		out.writeDouble(xValue);
+		out.writeDouble(yValue);
+		out.writeInt(hops);
+		out.writeObject(remoteEventListener);
+	}
+
+	/**
+	 * Reads the packet fields in the wire order
+	 * 
+	 * @param in stream from which the packet is read
+	 * 
+	 * @throws IOException
+	 * 				Thrown if the packet cannot be read
+	 * @throws ClassNotFoundException
+	 * 				Thrown if the class of the listener stub is not found
+	 */
+	@SuppressWarnings("unchecked")
+	public void readExternal(ObjectInput in) throws IOException,
+			ClassNotFoundException {
+		trackingNumber = in.readLong();
+		xValue = in.readDouble();
+		yValue = in.readDouble();
+		hops = in.readInt();
+		remoteEventListener = (RemoteEventListener<PacketEvent>) in
+				.readObject();
+	}
 }
@@ -4,34 +4,146 @@ import edu.rit.ds.RemoteEvent;
 
 /**
  * Remote event which will be generated by the GPSOffice objects. Customer and
- * headquarters will listen this type of events.
+ * headquarters will listen this type of events. The event only carries the
+ * status, office name, tracking number and destination of the packet, the
+ * human readable message is rendered when it is first asked for.
  * 
  * @author Shridhar Bhalekar
  *
  */
 public class PacketEvent extends RemoteEvent{
 
-	private static final long serialVersionUID = 1L;
+	private static final long serialVersionUID = 4L;
+
+	/**
+	 * Status of a packet reported by an event
+	 */
+	public enum Status {
+		/**
+		 * Packet arrived at the office
+		 */
+		ARRIVED,
+		/**
+		 * Packet departed from the office, taken by a neighbor
+		 */
+		DEPARTED,
+		/**
+		 * Packet delivered from the office to its destination
+		 */
+		DELIVERED,
+		/**
+		 * Packet lost by the office
+		 */
+		LOST
+	}
 	
 	/**
-	 * Message intended for the customer and headquarters
+	 * Status of the packet
 	 */
-	private String message;
+	private Status status;
+	
+	/**
+	 * Name of the office which generated the event
+	 */
+	private String office;
 	
 	/**
 	 * Tracking number of the packet for which event is generated
 	 */
 	private long trackNumber;
 	
+	/**
+	 * X coordinate of the destination
+	 */
+	private double xValue;
+	
+	/**
+	 * Y coordinate of the destination
+	 */
+	private double yValue;
+	
+	/**
+	 * Time in milliseconds at which the office generated the event
+	 */
+	private long time;
+	
+	/**
+	 * Name of the neighbor whose failure caused the event, null if none
+	 */
+	private String cause;
+	
+	/**
+	 * Message intended for the customer and headquarters, rendered on demand
+	 */
+	private transient String message;
+	
 	/**
 	 * Creates a PacketEvent object
 	 * 
-	 * @param message message intended for the listeners
+	 * @param status status of the packet
+	 * @param office name of the office which generated the event
+	 * @param trackNumber packet tracing number
+	 * @param xValue X coordinate of the destination
+	 * @param yValue Y coordinate of the destination
+	 */
+	public PacketEvent(Status status, String office, long trackNumber,
+			double xValue, double yValue) {
+		this(status, office, trackNumber, xValue, yValue, System
+				.currentTimeMillis());
+	}
+	
+	/**
+	 * Creates a PacketEvent object generated at a given time, used when an
+	 * event is read back from the headquarters event store
+	 * 
+	 * @param status status of the packet
+	 * @param office name of the office which generated the event
+	 * @param trackNumber packet tracing number
+	 * @param xValue X coordinate of the destination
+	 * @param yValue Y coordinate of the destination
+	 * @param time time in milliseconds at which the event was generated
+	 */
+	public PacketEvent(Status status, String office, long trackNumber,
+			double xValue, double yValue, long time) {
+		this(status, office, trackNumber, xValue, yValue, time, null);
+	}
+	
+	/**
+	 * Creates a PacketEvent object caused by the failure of a neighbor
+	 * 
+	 * @param status status of the packet
+	 * @param office name of the office which generated the event
 	 * @param trackNumber packet tracing number
+	 * @param xValue X coordinate of the destination
+	 * @param yValue Y coordinate of the destination
+	 * @param time time in milliseconds at which the event was generated
+	 * @param cause name of the neighbor which failed, null if none
 	 */
-	public PacketEvent(String message, long trackNumber) {
-		this.message = message;
+	public PacketEvent(Status status, String office, long trackNumber,
+			double xValue, double yValue, long time, String cause) {
+		this.status = status;
+		this.office = office;
 		this.trackNumber = trackNumber;
+		this.xValue = xValue;
+		this.yValue = yValue;
+		this.time = time;
+		this.cause = cause;
+	}
+	
+	/**
+	 * Getter which returns the status of the packet
+	 * @return status of the packet
+	 */
+	public Status getStatus() {
+		return this.status;
+	}
+	
+	/**
+	 * Getter which returns the name of the office which generated the event
+	 * @return name of the office
+	 */
+	public String getOffice() {
+		return this.office;
 	}
 	
 	/**
@@ -43,10 +155,81 @@ public class PacketEvent extends RemoteEvent{
 	}
 	
 	/**
-	 * Getter which returns the message
+	 * Getter which returns the X coordinate of the destination
+	 * @return X coordinate
+	 */
+	public double getxValue() {
+		return this.xValue;
+	}
+	
+	/**
+	 * Getter which returns the Y coordinate of the destination
+	 * @return Y coordinate
+	 */
+	public double getyValue() {
+		return this.yValue;
+	}
+	
+	/**
+	 * Getter which returns the time at which the office generated the event
+	 * @return time in milliseconds
+	 */
+	public long getTime() {
+		return this.time;
+	}
+	
+	/**
+	 * Getter which returns the neighbor whose failure caused the event
+	 * @return name of the neighbor, null if none
+	 */
+	public String getCause() {
+		return this.cause;
+	}
+	
+	/**
+	 * Returns true if the packet will not generate any further event
+	 * @return true if the packet was delivered or lost
+	 */
+	public boolean isFinal() {
+		return status == Status.DELIVERED || status == Status.LOST;
+	}
+	
+	/**
+	 * Getter which returns the message, rendering it on the first call
 	 * @return message for listeners
 	 */
 	public String getMessage() {
-		return this.message;
+		if (message == null) {
+			StringBuilder builder = new StringBuilder(64);
+			builder.append("Package number ").append(trackNumber);
+			switch (status) {
+			case ARRIVED:
+				builder.append(" arrived at ").append(office).append(" office");
+				break;
+			case DEPARTED:
+				builder.append(" departed from ").append(office)
+						.append(" office");
+				break;
+			case LOST:
+				builder.append(" lost by ").append(office).append(" office");
+				if (cause != null) {
+					builder.append(" after ").append(cause)
+							.append(" office failed");
+				}
+				break;
+			case DELIVERED:
+				builder.append(" delivered from ").append(office)
+						.append(" office to (").append(xValue).append(",")
+						.append(yValue).append(")");
+				break;
+			}
+			message = builder.toString();
+		}
+		return message;
+	}
+	
+	@Override
+	public String toString() {
+		return getMessage();
 	}
 }
@@ -0,0 +1,40 @@
+
+
+import java.util.List;
+
+import edu.rit.ds.RemoteEvent;
+
+/**
+ * Remote event which carries several packet events generated by a GPSOffice.
+ * Headquarters receive the events of an office in batches so that the 
+ * monitoring traffic does not grow one to one with the packet volume.
+ * 
+ * @author Shridhar Bhalekar
+ *
+ */
+public class PacketEventBatch extends RemoteEvent {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Packet events in the order they were generated
+	 */
+	private List<PacketEvent> events;
+
+	/**
+	 * Creates a PacketEventBatch object
+	 * 
+	 * @param events packet events in the order they were generated
+	 */
+	public PacketEventBatch(List<PacketEvent> events) {
+		this.events = events;
+	}
+
+	/**
+	 * Getter which returns the packet events of the batch
+	 * @return packet events in the order they were generated
+	 */
+	public List<PacketEvent> getEvents() {
+		return this.events;
+	}
+}
@@ -0,0 +1,478 @@
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Class PacketJournal is the write ahead journal of the packets held by a
+ * GPSOffice. An ACCEPTED record is appended when the office admits a packet
+ * and a DONE record when the packet was handed off to a neighbor, delivered
+ * or lost. Records are keyed by a sequence number local to the office.
+ *
+ * The journal is a memory mapped file, so appending a record is a copy to
+ * memory which survives a crash of the office process. The records reach the
+ * disk when force is called, which the office does on a timer so that one
+ * sync covers all the records appended in the meantime. The office answers
+ * the sender of a packet before that sync, so the journal is process-crash
+ * durable only: a crash of the machine loses the packets accepted since the
+ * last sync.
+ *
+ * The journal is kept in generations, the files named after the journal
+ * followed by a dot and the number of the generation. When the mapped
+ * region is full the packets still held are copied to the file of the next
+ * generation. A file cannot be replaced or deleted on every platform while
+ * it is still mapped, and a mapped region is only released by the garbage
+ * collector, so the files of the older generations are deleted once that
+ * succeeds.
+ *
+ * A generation starts with a byte set once all the packets were copied to
+ * it, so a generation cut short by a crash is passed over when the journal
+ * is recovered. A record is laid out as a type byte, the length of the
+ * payload, the sequence number and the payload, which is the serialized
+ * packet for an ACCEPTED record and empty for a DONE record. The type byte
+ * is written last, so a record cut short by a crash still reads as the end
+ * of the journal.
+ *
+ * @author Shridhar Bhalekar
+ *
+ */
+public class PacketJournal {
+
+	/**
+	 * Type byte marking the end of the records
+	 */
+	private static final byte END = 0;
+
+	/**
+	 * Type byte of a record of an admitted packet
+	 */
+	private static final byte ACCEPTED = 1;
+
+	/**
+	 * Type byte of a record of a packet no longer held by the office
+	 */
+	private static final byte DONE = 2;
+
+	/**
+	 * First byte of a generation to which all the packets were copied
+	 */
+	private static final byte COMPLETE = 1;
+
+	/**
+	 * Size of the header of a record: type, payload length and sequence
+	 * number
+	 */
+	private static final int headerSize = 1 + 4 + 8;
+
+	/**
+	 * File of the journal, the generations are named after it
+	 */
+	private final File file;
+
+	/**
+	 * Number of the current generation
+	 */
+	private long generation = -1;
+
+	/**
+	 * Files of older generations which could not be deleted yet
+	 */
+	private final List<File> stale = new ArrayList<File>();
+
+	/**
+	 * Minimum size of the mapped region of the journal
+	 */
+	private final int minimumSize;
+
+	/**
+	 * Open file of the journal
+	 */
+	private RandomAccessFile journalFile;
+
+	/**
+	 * Mapped region of the journal, positioned after the last record
+	 */
+	private MappedByteBuffer buffer;
+
+	/**
+	 * Serialized packets still held by the office keyed by their sequence
+	 * numbers, kept to rewrite the journal once the region is full
+	 */
+	private Map<Long, byte[]> live;
+
+	/**
+	 * Sequence number of the next admitted packet
+	 */
+	private long nextSequence;
+
+	/**
+	 * True if records were appended since the last force
+	 */
+	private volatile boolean dirty;
+
+	/**
+	 * Packets read from an existing journal which were still held by the
+	 * office when it stopped
+	 */
+	private List<Packet> recovered;
+
+	/**
+	 * Opens a journal. If a complete generation exists the packets of the
+	 * latest one which were accepted but not done are recovered and the
+	 * journal is rewritten with only those packets.
+	 *
+	 * @param file file of the journal
+	 * @param minimumSize minimum size in bytes of the mapped region
+	 *
+	 * @throws IOException
+	 * 				Thrown if the journal cannot be read or written
+	 */
+	public PacketJournal(File file, int minimumSize) throws IOException {
+		if (minimumSize < headerSize) {
+			throw new IllegalArgumentException("Invalid journal size "
+					+ minimumSize);
+		}
+		this.file = file;
+		this.minimumSize = minimumSize;
+		this.live = new LinkedHashMap<Long, byte[]>();
+		this.recovered = new ArrayList<Packet>();
+		SortedMap<Long, File> generations = listGenerations();
+		if (!generations.isEmpty()) {
+			generation = generations.lastKey();
+		}
+		stale.addAll(generations.values());
+		List<Long> numbers = new ArrayList<Long>(generations.keySet());
+		for (int i = numbers.size() - 1; i >= 0; i--) {
+			if (recover(generations.get(numbers.get(i)))) {
+				break;
+			}
+		}
+		rewrite();
+	}
+
+	/**
+	 * Returns the file of a generation of the journal
+	 *
+	 * @param number number of the generation
+	 * @return file of the generation
+	 */
+	private File generationFile(long number) {
+		return new File(file.getPath() + "." + number);
+	}
+
+	/**
+	 * Finds the files of the generations of the journal
+	 *
+	 * @return files keyed by the number of their generation
+	 */
+	private SortedMap<Long, File> listGenerations() {
+		SortedMap<Long, File> generations = new TreeMap<Long, File>();
+		File directory = file.getAbsoluteFile().getParentFile();
+		String[] names = directory == null ? null : directory.list();
+		if (names == null) {
+			return generations;
+		}
+		String prefix = file.getName() + ".";
+		for (String name : names) {
+			if (name.length() > prefix.length() && name.startsWith(prefix)) {
+				try {
+					long number = Long.parseLong(name.substring(prefix
+							.length()));
+					if (number >= 0) {
+						generations.put(number, generationFile(number));
+					}
+				} catch (NumberFormatException e) {
+					// not a generation of this journal
+				}
+			}
+		}
+		return generations;
+	}
+
+	/**
+	 * Reads the records of a generation of the journal
+	 *
+	 * @param source file of the generation
+	 * @return false if the generation is not complete
+	 *
+	 * @throws IOException
+	 * 				Thrown if the journal cannot be read
+	 */
+	private boolean recover(File source) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(source, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			MappedByteBuffer records = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (!records.hasRemaining() || records.get() != COMPLETE) {
+				return false;
+			}
+			while (records.remaining() >= headerSize) {
+				byte type = records.get();
+				if (type != ACCEPTED && type != DONE) {
+					break;
+				}
+				int length = records.getInt();
+				long sequence = records.getLong();
+				if (length < 0 || length > records.remaining()) {
+					break;
+				}
+				nextSequence = Math.max(nextSequence, sequence + 1);
+				if (type == ACCEPTED) {
+					byte[] payload = new byte[length];
+					records.get(payload);
+					live.put(sequence, payload);
+				} else {
+					live.remove(sequence);
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		for (Map.Entry<Long, byte[]> entry : live.entrySet()) {
+			Packet packet = deserialize(entry.getValue());
+			packet.setJournalSequence(entry.getKey());
+			recovered.add(packet);
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the packets still held to the file of the next generation,
+	 * which then becomes the journal
+	 *
+	 * @throws IOException
+	 * 				Thrown if the journal cannot be written
+	 */
+	private void rewrite() throws IOException {
+		long needed = 0;
+		for (byte[] payload : live.values()) {
+			needed += headerSize + payload.length;
+		}
+		long size = Math.max(minimumSize, 1 + 2 * needed);
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Journal " + file + " is full");
+		}
+
+		File fresh = generationFile(generation + 1);
+		if (fresh.exists() && !fresh.delete()) {
+			throw new IOException("Cannot replace journal " + fresh);
+		}
+		RandomAccessFile out = new RandomAccessFile(fresh, "rw");
+		MappedByteBuffer region;
+		try {
+			out.setLength(size);
+			region = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					size);
+		} catch (IOException e) {
+			out.close();
+			throw e;
+		}
+		region.put(END);
+		for (Map.Entry<Long, byte[]> entry : live.entrySet()) {
+			write(region, ACCEPTED, entry.getKey(), entry.getValue());
+		}
+		region.force();
+		// the generation is only used once all its packets are on the disk
+		region.put(0, COMPLETE);
+		region.force();
+
+		if (journalFile != null) {
+			journalFile.close();
+			stale.add(generationFile(generation));
+		}
+		generation++;
+		journalFile = out;
+		buffer = region;
+		deleteStale();
+	}
+
+	/**
+	 * Deletes the files of the older generations which are no longer mapped.
+	 * The others are tried again later.
+	 */
+	private void deleteStale() {
+		Iterator<File> files = stale.iterator();
+		while (files.hasNext()) {
+			File old = files.next();
+			if (old.delete() || !old.exists()) {
+				files.remove();
+			}
+		}
+	}
+
+	/**
+	 * Writes a record at the current position of a region. The type byte is
+	 * written after the rest of the record.
+	 *
+	 * @param region region to which the record is written
+	 * @param type type of the record
+	 * @param sequence sequence number of the packet
+	 * @param payload payload of the record
+	 */
+	private static void write(MappedByteBuffer region, byte type,
+			long sequence, byte[] payload) {
+		int start = region.position();
+		region.put(END);
+		region.putInt(payload.length);
+		region.putLong(sequence);
+		region.put(payload);
+		region.put(start, type);
+	}
+
+	/**
+	 * Appends a record, rewriting the journal first if the region is full
+	 *
+	 * @param type type of the record
+	 * @param sequence sequence number of the packet
+	 * @param payload payload of the record
+	 *
+	 * @throws IOException
+	 * 				Thrown if the journal cannot be written
+	 */
+	private void append(byte type, long sequence, byte[] payload)
+			throws IOException {
+		// keep room for the end marker after the record
+		if (buffer.remaining() < headerSize + payload.length + 1) {
+			rewrite();
+		}
+		write(buffer, type, sequence, payload);
+		dirty = true;
+	}
+
+	/**
+	 * Records that the office admitted a packet and assigns the packet its
+	 * sequence number
+	 *
+	 * @param packet admitted packet
+	 *
+	 * @throws IOException
+	 * 				Thrown if the journal cannot be written
+	 */
+	public void accepted(Packet packet) throws IOException {
+		byte[] payload = serialize(packet);
+		synchronized (this) {
+			long sequence = nextSequence++;
+			live.put(sequence, payload);
+			try {
+				append(ACCEPTED, sequence, payload);
+			} catch (IOException e) {
+				live.remove(sequence);
+				throw e;
+			}
+			packet.setJournalSequence(sequence);
+		}
+	}
+
+	/**
+	 * Records that the office no longer holds a packet
+	 *
+	 * @param packet packet handed off, delivered or lost
+	 *
+	 * @throws IOException
+	 * 				Thrown if the journal cannot be written
+	 */
+	public synchronized void done(Packet packet) throws IOException {
+		if (live.remove(packet.getJournalSequence()) != null) {
+			append(DONE, packet.getJournalSequence(), new byte[0]);
+		}
+	}
+
+	/**
+	 * Writes the records appended since the last call to the disk and
+	 * deletes the files of the older generations released in the meantime
+	 */
+	public void force() {
+		MappedByteBuffer region;
+		synchronized (this) {
+			if (!stale.isEmpty()) {
+				deleteStale();
+			}
+			if (!dirty) {
+				return;
+			}
+			dirty = false;
+			region = buffer;
+		}
+		region.force();
+	}
+
+	/**
+	 * Returns the packets recovered when the journal was opened. They keep
+	 * their sequence numbers and must be marked done like any other packet.
+	 *
+	 * @return recovered packets in the order they were accepted
+	 */
+	public List<Packet> getRecovered() {
+		return recovered;
+	}
+
+	/**
+	 * Returns the number of packets recorded as held by the office
+	 * @return number of packets
+	 */
+	public synchronized int size() {
+		return live.size();
+	}
+
+	/**
+	 * Forces the records to the disk and closes the journal
+	 *
+	 * @throws IOException
+	 * 				Thrown if the journal cannot be closed
+	 */
+	public synchronized void close() throws IOException {
+		buffer.force();
+		journalFile.close();
+		deleteStale();
+	}
+
+	/**
+	 * Serializes a packet
+	 *
+	 * @param packet packet to be serialized
+	 * @return serialized bytes
+	 * @throws IOException
+	 */
+	private static byte[] serialize(Packet packet) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(packet);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Reads a serialized packet
+	 *
+	 * @param payload serialized bytes
+	 * @return packet
+	 * @throws IOException
+	 */
+	private static Packet deserialize(byte[] payload) throws IOException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+				payload));
+		try {
+			return (Packet) in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Cannot read journal record", e);
+		} finally {
+			in.close();
+		}
+	}
+}
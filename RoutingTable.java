@@ -0,0 +1,234 @@
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Class RoutingTable holds the next hop from a GPSOffice towards every other
+ * office of the neighbor graph collected from its peers. Paths are computed 
+ * with Dijkstra's algorithm and minimize the number of hops first and the
+ * distance travelled second, since every hop costs the processing delay of
+ * an office. 
+ * 
+ * A packet is sent along the path to the office of the graph nearest to its
+ * destination, so it gets past an office where greedy forwarding would stop
+ * because none of its neighbors is closer. The office the packet reaches 
+ * next knows that office too and sends the packet on towards it or towards
+ * an office nearer still, so the tables of the offices never send a packet
+ * in a circle while they agree.
+ * 
+ * @author Shridhar Bhalekar
+ *
+ */
+public final class RoutingTable {
+
+	/**
+	 * Path cost of an office waiting in the queue of Dijkstra's algorithm
+	 */
+	private static class Entry implements Comparable<Entry> {
+
+		private final int office;
+
+		private final int hops;
+
+		private final double distance;
+
+		private Entry(int office, int hops, double distance) {
+			this.office = office;
+			this.hops = hops;
+			this.distance = distance;
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			if (hops != other.hops) {
+				return hops < other.hops ? -1 : 1;
+			}
+			return Double.compare(distance, other.distance);
+		}
+	}
+
+	/**
+	 * Offices of the graph numbered from zero, the owner of the table is
+	 * number 0
+	 */
+	private final String[] names;
+
+	/**
+	 * Coordinates of the offices
+	 */
+	private final double[] xValues, yValues;
+
+	/**
+	 * Numbers of the neighbors of each office, null if the neighbors of the
+	 * office were not collected
+	 */
+	private final int[][] adjacency;
+
+	/**
+	 * Number of hops of the shortest path to each office, 
+	 * Integer.MAX_VALUE if the office cannot be reached
+	 */
+	private final int[] hops;
+
+	/**
+	 * Number of the first hop of the shortest path to each office, -1 if 
+	 * the office cannot be reached
+	 */
+	private final int[] first;
+
+	/**
+	 * Number of offices which can be reached, including the owner
+	 */
+	private final int reachable;
+
+	/**
+	 * Builds the routing table of an office
+	 * 
+	 * @param self office owning the table
+	 * @param nodes offices of the graph keyed by their names
+	 * @param edges names of the neighbors of each office keyed by the name of
+	 * 			the office
+	 */
+	public RoutingTable(NeighborStorage self, Map<String, NeighborStorage> nodes,
+			Map<String, List<String>> edges) {
+		// number the offices, the owner of the table is number 0
+		List<NeighborStorage> list = new ArrayList<NeighborStorage>();
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		list.add(self);
+		ids.put(self.getCity(), 0);
+		for (NeighborStorage node : nodes.values()) {
+			if (!ids.containsKey(node.getCity())) {
+				ids.put(node.getCity(), list.size());
+				list.add(node);
+			}
+		}
+
+		int count = list.size();
+		names = new String[count];
+		xValues = new double[count];
+		yValues = new double[count];
+		adjacency = new int[count][];
+		for (int v = 0; v < count; v++) {
+			NeighborStorage node = list.get(v);
+			names[v] = node.getCity();
+			xValues[v] = node.getX();
+			yValues[v] = node.getY();
+			List<String> adjacent = edges.get(node.getCity());
+			if (adjacent != null) {
+				int[] numbers = new int[adjacent.size()];
+				int known = 0;
+				for (String name : adjacent) {
+					Integer id = ids.get(name);
+					if (id != null) {
+						numbers[known++] = id;
+					}
+				}
+				adjacency[v] = Arrays.copyOf(numbers, known);
+			}
+		}
+
+		hops = new int[count];
+		first = new int[count];
+		double[] dist = new double[count];
+		boolean[] done = new boolean[count];
+		Arrays.fill(hops, Integer.MAX_VALUE);
+		Arrays.fill(dist, Double.MAX_VALUE);
+		Arrays.fill(first, -1);
+		hops[0] = 0;
+		dist[0] = 0.0;
+
+		PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+		queue.add(new Entry(0, 0, 0.0));
+		while (!queue.isEmpty()) {
+			int u = queue.poll().office;
+			if (done[u]) {
+				continue;
+			}
+			done[u] = true;
+			if (adjacency[u] == null) {
+				continue;
+			}
+			for (int v : adjacency[u]) {
+				if (done[v]) {
+					continue;
+				}
+				double dx = xValues[v] - xValues[u];
+				double dy = yValues[v] - yValues[u];
+				int h = hops[u] + 1;
+				double d = dist[u] + Math.sqrt(dx * dx + dy * dy);
+				if (h < hops[v] || (h == hops[v] && d < dist[v])) {
+					hops[v] = h;
+					dist[v] = d;
+					first[v] = u == 0 ? v : first[u];
+					queue.add(new Entry(v, h, d));
+				}
+			}
+		}
+
+		int known = 1;
+		for (int v = 1; v < count; v++) {
+			if (first[v] >= 0) {
+				known++;
+			}
+		}
+		reachable = known;
+	}
+
+	/**
+	 * Returns the number of offices reachable through the table, including
+	 * the office owning it
+	 * 
+	 * @return number of reachable offices
+	 */
+	public int size() {
+		return reachable;
+	}
+
+	/**
+	 * Returns the square of the distance from an office to a location
+	 * 
+	 * @param office number of the office
+	 * @param x X coordinate of the location
+	 * @param y Y coordinate of the location
+	 * @return squared distance
+	 */
+	private double distance(int office, double x, double y) {
+		double dx = xValues[office] - x;
+		double dy = yValues[office] - y;
+		return dx * dx + dy * dy;
+	}
+
+	/**
+	 * Finds the next hop of a packet. The packet is sent towards the office
+	 * of the graph nearest to the destination, which may lie beyond an 
+	 * office where greedy forwarding would stop. Ties are broken by name so
+	 * that every office picks the same one.
+	 * 
+	 * @param x X coordinate of the destination
+	 * @param y Y coordinate of the destination
+	 * 
+	 * @return name of the neighbor to forward the packet to, or the name of
+	 * 			the office owning the table if it should deliver the packet
+	 */
+	public String nextHop(double x, double y) {
+		int target = 0;
+		double best = distance(0, x, y);
+		for (int v = 1; v < names.length; v++) {
+			if (first[v] < 0) {
+				continue;
+			}
+			double d = distance(v, x, y);
+			if (d < best
+					|| (d == best && names[v].compareTo(names[target]) < 0)) {
+				best = d;
+				target = v;
+			}
+		}
+		return names[target == 0 ? 0 : first[target]];
+	}
+}
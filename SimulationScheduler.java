@@ -0,0 +1,294 @@
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class SimulationScheduler runs the tasks of a simulated network on a
+ * virtual clock. Tasks are kept in a queue ordered by the virtual time they
+ * are due and are run one after the other on the thread which drives the
+ * simulation, the clock jumping to the time of each task. A delay therefore
+ * costs no real time and a run with the same inputs always executes the
+ * same tasks in the same order.
+ *
+ * Tasks given to execute are due at the current virtual time and run after
+ * the tasks already due at that time. Periodic tasks run again after their
+ * period, fixed rate and fixed delay are the same since a task takes no
+ * virtual time.
+ *
+ * @author Shridhar Bhalekar
+ *
+ */
+public class SimulationScheduler extends AbstractExecutorService implements
+		ScheduledExecutorService, TimeSource {
+
+	/**
+	 * Task waiting in the queue of the scheduler
+	 */
+	private final class Task<V> extends FutureTask<V> implements
+			ScheduledFuture<V> {
+
+		/**
+		 * Virtual time in milliseconds at which the task is due
+		 */
+		private long time;
+
+		/**
+		 * Order in which the task was queued, breaks the ties of time
+		 */
+		private long sequence;
+
+		/**
+		 * Period in milliseconds of a periodic task, 0 for a one shot task
+		 */
+		private final long period;
+
+		private Task(Runnable command, V result, long time, long period) {
+			super(command, result);
+			this.time = time;
+			this.period = period;
+		}
+
+		private Task(Callable<V> callable, long time) {
+			super(callable);
+			this.time = time;
+			this.period = 0;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(time - currentTimeMillis(),
+					TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			if (other instanceof Task) {
+				Task<?> task = (Task<?>) other;
+				if (time != task.time) {
+					return time < task.time ? -1 : 1;
+				}
+				return sequence < task.sequence ? -1
+						: sequence > task.sequence ? 1 : 0;
+			}
+			long diff = getDelay(TimeUnit.MILLISECONDS)
+					- other.getDelay(TimeUnit.MILLISECONDS);
+			return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+		}
+
+		@Override
+		public void run() {
+			if (period == 0) {
+				super.run();
+			} else if (runAndReset()) {
+				time += period;
+				enqueue(this);
+			}
+		}
+
+		@Override
+		protected void setException(Throwable t) {
+			// nobody waits on most tasks, a failure would go unnoticed
+			t.printStackTrace();
+			super.setException(t);
+		}
+	}
+
+	/**
+	 * Tasks waiting to run ordered by due time
+	 */
+	private final PriorityQueue<Task<?>> queue;
+
+	/**
+	 * Current virtual time in milliseconds
+	 */
+	private long now;
+
+	/**
+	 * Number of tasks queued so far
+	 */
+	private long queued;
+
+	/**
+	 * Number of tasks run so far
+	 */
+	private long executed;
+
+	/**
+	 * True once the scheduler was shut down
+	 */
+	private boolean shutdown;
+
+	/**
+	 * Creates a scheduler whose virtual clock starts at zero
+	 */
+	public SimulationScheduler() {
+		this.queue = new PriorityQueue<Task<?>>();
+	}
+
+	/**
+	 * Returns the current virtual time
+	 *
+	 * @return time in milliseconds since the start of the simulation
+	 */
+	@Override
+	public synchronized long currentTimeMillis() {
+		return now;
+	}
+
+	/**
+	 * Puts a task in the queue unless the scheduler was shut down
+	 *
+	 * @param task task to be queued
+	 * @return the task
+	 */
+	private synchronized <V> Task<V> enqueue(Task<V> task) {
+		if (!shutdown) {
+			task.sequence = queued++;
+			queue.add(task);
+		}
+		return task;
+	}
+
+	/**
+	 * Returns the virtual time at which a task given a delay is due
+	 *
+	 * @param delay delay of the task
+	 * @param unit unit of the delay
+	 * @return time in milliseconds
+	 */
+	private synchronized long dueTime(long delay, TimeUnit unit) {
+		return now + Math.max(0, unit.toMillis(delay));
+	}
+
+	/**
+	 * Runs the next task due, moving the clock to its time
+	 *
+	 * @return false if no task is queued
+	 */
+	public boolean runNext() {
+		Task<?> task;
+		synchronized (this) {
+			task = queue.poll();
+			if (task == null) {
+				return false;
+			}
+			if (task.time > now) {
+				now = task.time;
+			}
+			executed++;
+		}
+		task.run();
+		return true;
+	}
+
+	/**
+	 * Runs every task due up to a virtual time and moves the clock to it
+	 *
+	 * @param time virtual time in milliseconds
+	 */
+	public void runUntil(long time) {
+		while (true) {
+			synchronized (this) {
+				Task<?> next = queue.peek();
+				if (next == null || next.time > time) {
+					if (time > now) {
+						now = time;
+					}
+					return;
+				}
+			}
+			runNext();
+		}
+	}
+
+	/**
+	 * Returns the number of tasks run so far
+	 *
+	 * @return number of tasks
+	 */
+	public synchronized long getExecuted() {
+		return executed;
+	}
+
+	/**
+	 * Returns the number of tasks waiting to run
+	 *
+	 * @return number of tasks
+	 */
+	public synchronized int getQueued() {
+		return queue.size();
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		schedule(command, 0, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public ScheduledFuture<?> schedule(Runnable command, long delay,
+			TimeUnit unit) {
+		return enqueue(new Task<Object>(command, null, dueTime(delay, unit),
+				0));
+	}
+
+	@Override
+	public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay,
+			TimeUnit unit) {
+		return enqueue(new Task<V>(callable, dueTime(delay, unit)));
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+			long initialDelay, long period, TimeUnit unit) {
+		return scheduleWithFixedDelay(command, initialDelay, period, unit);
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+			long initialDelay, long delay, TimeUnit unit) {
+		long period = unit.toMillis(delay);
+		if (period <= 0) {
+			throw new IllegalArgumentException("Invalid period " + delay);
+		}
+		return enqueue(new Task<Object>(command, null, dueTime(initialDelay,
+				unit), period));
+	}
+
+	@Override
+	public synchronized void shutdown() {
+		shutdown = true;
+	}
+
+	@Override
+	public synchronized List<Runnable> shutdownNow() {
+		shutdown = true;
+		List<Runnable> pending = new ArrayList<Runnable>(queue);
+		queue.clear();
+		return pending;
+	}
+
+	@Override
+	public synchronized boolean isShutdown() {
+		return shutdown;
+	}
+
+	@Override
+	public synchronized boolean isTerminated() {
+		return shutdown && queue.isEmpty();
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) {
+		// the tasks only run when the simulation drives the clock
+		return isTerminated();
+	}
+}
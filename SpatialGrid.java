@@ -0,0 +1,265 @@
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Class SpatialGrid is a uniform grid index of GPSOffice locations. Each 
+ * office is stored in the cell containing its coordinates, so the offices
+ * nearest to a point are found by visiting rings of cells around the point
+ * instead of measuring the distance to every office.
+ * 
+ * @author Shridhar Bhalekar
+ *
+ */
+public class SpatialGrid {
+
+	/**
+	 * Office found by a search along with its distance to the searched point
+	 */
+	private static class Candidate {
+
+		private final NeighborStorage office;
+
+		private final double distance;
+
+		private Candidate(NeighborStorage office, double distance) {
+			this.office = office;
+			this.distance = distance;
+		}
+	}
+
+	/**
+	 * Orders candidates farthest first, the head of a bounded heap is then
+	 * the candidate to be dropped when a closer one is found
+	 */
+	private static final Comparator<Candidate> farthestFirst = 
+		new Comparator<Candidate>() {
+		@Override
+		public int compare(Candidate c1, Candidate c2) {
+			return Double.compare(c2.distance, c1.distance);
+		}
+	};
+
+	/**
+	 * Side of a grid cell
+	 */
+	private double cellSize;
+
+	/**
+	 * Offices of each non empty cell keyed by the cell key
+	 */
+	private Map<Long, List<NeighborStorage>> cells;
+
+	/**
+	 * Offices keyed by their names
+	 */
+	private Map<String, NeighborStorage> offices;
+
+	/**
+	 * Bounds of the cells which ever held an office
+	 */
+	private int minCellX, maxCellX, minCellY, maxCellY;
+
+	/**
+	 * Creates an empty SpatialGrid
+	 * 
+	 * @param cellSize side of a grid cell
+	 */
+	public SpatialGrid(double cellSize) {
+		if (cellSize <= 0.0) {
+			throw new IllegalArgumentException("Invalid cell size: "
+					+ cellSize);
+		}
+		this.cellSize = cellSize;
+		this.cells = new HashMap<Long, List<NeighborStorage>>();
+		this.offices = new HashMap<String, NeighborStorage>();
+		this.minCellX = Integer.MAX_VALUE;
+		this.maxCellX = Integer.MIN_VALUE;
+		this.minCellY = Integer.MAX_VALUE;
+		this.maxCellY = Integer.MIN_VALUE;
+	}
+
+	/**
+	 * Returns the cell coordinate of a location coordinate
+	 * 
+	 * @param value X or Y coordinate
+	 * @return cell coordinate
+	 */
+	private int cell(double value) {
+		return (int) Math.floor(value / cellSize);
+	}
+
+	/**
+	 * Returns the key of a cell
+	 * 
+	 * @param cellX X coordinate of the cell
+	 * @param cellY Y coordinate of the cell
+	 * @return key of the cell
+	 */
+	private static long key(int cellX, int cellY) {
+		return ((long) cellX << 32) | (cellY & 0xffffffffL);
+	}
+
+	/**
+	 * Adds an office to the grid, replacing the office of the same name
+	 * 
+	 * @param office office to be added
+	 */
+	public synchronized void add(NeighborStorage office) {
+		remove(office.getCity());
+		int cellX = cell(office.getX());
+		int cellY = cell(office.getY());
+		Long key = key(cellX, cellY);
+		List<NeighborStorage> list = cells.get(key);
+		if (list == null) {
+			list = new ArrayList<NeighborStorage>(2);
+			cells.put(key, list);
+		}
+		list.add(office);
+		offices.put(office.getCity(), office);
+		minCellX = Math.min(minCellX, cellX);
+		maxCellX = Math.max(maxCellX, cellX);
+		minCellY = Math.min(minCellY, cellY);
+		maxCellY = Math.max(maxCellY, cellY);
+	}
+
+	/**
+	 * Removes an office from the grid
+	 * 
+	 * @param city name of the office to be removed
+	 * @return removed office or null if no office had that name
+	 */
+	public synchronized NeighborStorage remove(String city) {
+		NeighborStorage office = offices.remove(city);
+		if (office != null) {
+			Long key = key(cell(office.getX()), cell(office.getY()));
+			List<NeighborStorage> list = cells.get(key);
+			list.remove(office);
+			if (list.isEmpty()) {
+				cells.remove(key);
+			}
+		}
+		return office;
+	}
+
+	/**
+	 * Returns the office of the given name
+	 * 
+	 * @param city name of the office
+	 * @return office or null if no office has that name
+	 */
+	public synchronized NeighborStorage get(String city) {
+		return offices.get(city);
+	}
+
+	/**
+	 * Returns the number of offices in the grid
+	 * @return number of offices
+	 */
+	public synchronized int size() {
+		return offices.size();
+	}
+
+	/**
+	 * Finds the offices nearest to a location. Rings of cells are visited 
+	 * outwards from the cell of the location until the requested number of
+	 * offices is found and no unvisited cell can hold a closer office. Once 
+	 * more cells were visited than there are offices, as in a small or 
+	 * sparse network, the offices are measured directly instead.
+	 * 
+	 * @param x X coordinate of the location
+	 * @param y Y coordinate of the location
+	 * @param count maximum number of offices to be returned
+	 * @param exclude name of an office to be left out, may be null
+	 * 
+	 * @return offices ordered from the nearest to the farthest
+	 */
+	public synchronized List<NeighborStorage> nearest(double x, double y,
+			int count, String exclude) {
+		List<NeighborStorage> result = new ArrayList<NeighborStorage>(count);
+		if (count <= 0 || offices.isEmpty()) {
+			return result;
+		}
+		PriorityQueue<Candidate> heap = new PriorityQueue<Candidate>(
+				count + 1, farthestFirst);
+		int cellX = cell(x);
+		int cellY = cell(y);
+		long maxRing = Math.max(
+				Math.max((long) cellX - minCellX, (long) maxCellX - cellX),
+				Math.max((long) cellY - minCellY, (long) maxCellY - cellY));
+
+		long visited = 0;
+		for (long ring = 0; ring <= maxRing; ring++) {
+			if (visited >= offices.size()) {
+				// the rings cost more than measuring every office
+				heap.clear();
+				for (NeighborStorage office : offices.values()) {
+					offer(heap, count, office, x, y, exclude);
+				}
+				break;
+			}
+			for (long cx = cellX - ring; cx <= cellX + ring; cx++) {
+				// inner cells of the ring were visited already
+				long step = (cx == cellX - ring || cx == cellX + ring) ? 1
+						: 2 * ring;
+				for (long cy = cellY - ring; cy <= cellY + ring; cy += step) {
+					if (cx < minCellX || cx > maxCellX || cy < minCellY
+							|| cy > maxCellY) {
+						continue;
+					}
+					visited++;
+					List<NeighborStorage> list = cells.get(key((int) cx,
+							(int) cy));
+					if (list != null) {
+						for (NeighborStorage office : list) {
+							offer(heap, count, office, x, y, exclude);
+						}
+					}
+				}
+			}
+			// any office beyond this ring is at least ring cells away
+			if (heap.size() == count
+					&& heap.peek().distance <= ring * cellSize) {
+				break;
+			}
+		}
+
+		while (!heap.isEmpty()) {
+			result.add(heap.poll().office);
+		}
+		Collections.reverse(result);
+		return result;
+	}
+
+	/**
+	 * Offers an office to the bounded heap of a search
+	 * 
+	 * @param heap nearest offices found so far, farthest first
+	 * @param count maximum number of offices in the heap
+	 * @param office office to be offered
+	 * @param x X coordinate of the searched location
+	 * @param y Y coordinate of the searched location
+	 * @param exclude name of an office to be left out, may be null
+	 */
+	private static void offer(PriorityQueue<Candidate> heap, int count,
+			NeighborStorage office, double x, double y, String exclude) {
+		if (exclude != null && exclude.equals(office.getCity())) {
+			return;
+		}
+		double dx = office.getX() - x;
+		double dy = office.getY() - y;
+		double distance = Math.sqrt(dx * dx + dy * dy);
+		if (heap.size() < count) {
+			heap.add(new Candidate(office, distance));
+		} else if (distance < heap.peek().distance) {
+			heap.poll();
+			heap.add(new Candidate(office, distance));
+		}
+	}
+}
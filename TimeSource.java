@@ -0,0 +1,30 @@
+
+
+/**
+ * Interface TimeSource provides the current time to the offices and the
+ * headquarters. The system clock is used when the network runs on real
+ * machines, a simulation gives its virtual clock instead so that the time
+ * stamps follow the simulated time.
+ * 
+ * @author Shridhar Bhalekar
+ *
+ */
+public interface TimeSource {
+
+	/**
+	 * Time source reading the system clock
+	 */
+	TimeSource SYSTEM = new TimeSource() {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	/**
+	 * Returns the current time
+	 * 
+	 * @return time in milliseconds
+	 */
+	long currentTimeMillis();
+}
@@ -0,0 +1,7 @@
+@echo off
+
+javac -d . *.java bench\*.java
+javac -cp . -d legacy bench\legacy\Packet.java
+java RoutingBenchmark %*
+java PacketWireBenchmark
+java Simulation
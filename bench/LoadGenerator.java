@@ -0,0 +1,475 @@
+import java.io.File;
+import java.rmi.RemoteException;
+import java.rmi.server.RemoteObject;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.rit.ds.RemoteEventListener;
+
+/**
+ * Load generator and end to end benchmark of the Geographic Package System.
+ * A network of offices laid out on a square grid is started in this process
+ * against a running registry, then packages are sent at a fixed rate from a
+ * set of origin offices. The generator listens to the events of every
+ * package and records the latency from the time the package was due to be
+ * sent to the delivery, the latency of every hop and the throughput. Since
+ * the latency starts at the due time, a send which started late because the
+ * offices were slow to answer counts against the latency instead of being
+ * left out. The results are printed and can be saved in the format of the
+ * other benchmarks to be compared with an earlier run.
+ *
+ * To run the generator start a registry and use the following command
+ * <p>
+ * Usage: java LoadGenerator <host> <port> [<option>=<value> ...]
+ * <p>
+ * where the options are
+ * 		 offices=<n>     - number of offices of the network (default 25)
+ * 		 delay=<ms>      - processing delay of the offices (default 100)
+ * 		 rate=<n>        - packages sent per second (default 50)
+ * 		 duration=<s>    - time during which packages are sent (default 30)
+ * 		 origins=<n>     - number of offices the packages are sent from
+ * 		 				   (default 1)
+ * 		 destinations=uniform|hotspot - spread of the destinations, hotspot
+ * 		 				   sends 80% of the packages close to five places
+ * 		 				   (default uniform)
+ * 		 settle=<ms>     - time given to the offices to build their routing
+ * 		 				   tables before the load starts (default 6000)
+ * 		 results=<file>  - file to which the results are saved
+ * 		 baseline=<file> - results of an earlier run to compare against
+ *
+ * @author Shridhar Bhalekar
+ *
+ */
+public class LoadGenerator {
+
+	/**
+	 * Distance between neighboring offices of the grid
+	 */
+	private static final double spacing = 10.0;
+
+	/**
+	 * Seed of the destinations, fixed so that runs are comparable
+	 */
+	private static final long seed = 20130405L;
+
+	/**
+	 * Time in milliseconds given to the packages in flight to finish once
+	 * the sending stopped
+	 */
+	private static final long drainTimeout = 120000;
+
+	/**
+	 * Progress of a package, updated from its events
+	 */
+	private static final class Trip {
+
+		/**
+		 * Time in milliseconds at which the package was due to be sent, -1
+		 * until the send returned
+		 */
+		private long due = -1;
+
+		/**
+		 * Time in milliseconds of the delivery, -1 until delivered
+		 */
+		private long end = -1;
+
+		/**
+		 * Time in milliseconds of the latest arrival
+		 */
+		private long lastArrival = -1;
+
+		/**
+		 * Number of offices the package arrived at
+		 */
+		private int hops;
+	}
+
+	/**
+	 * Host name and port of the registry server
+	 */
+	private String hostName;
+
+	private int portNumber;
+
+	/**
+	 * Number of offices of the network
+	 */
+	private int officeCount = 25;
+
+	/**
+	 * Processing delay of the offices in milliseconds
+	 */
+	private long delay = 100;
+
+	/**
+	 * Packages sent per second
+	 */
+	private double rate = 50;
+
+	/**
+	 * Time in seconds during which packages are sent
+	 */
+	private long duration = 30;
+
+	/**
+	 * Number of offices the packages are sent from
+	 */
+	private int originCount = 1;
+
+	/**
+	 * True if most destinations are close to a few hot spots
+	 */
+	private boolean hotSpot = false;
+
+	/**
+	 * Time in milliseconds before the load starts
+	 */
+	private long settle = 6000;
+
+	/**
+	 * Files of the results and of the baseline, null if not given
+	 */
+	private String resultsFile;
+
+	private String baselineFile;
+
+	/**
+	 * Packages on their way keyed by tracking number
+	 */
+	private final ConcurrentMap<Long, Trip> trips =
+		new ConcurrentHashMap<Long, Trip>();
+
+	/**
+	 * Latencies in milliseconds from the time a package was due to be sent
+	 * to the delivery
+	 */
+	private final LatencyHistogram endToEnd = new LatencyHistogram();
+
+	/**
+	 * Latencies in milliseconds between two consecutive arrivals
+	 */
+	private final LatencyHistogram perHop = new LatencyHistogram();
+
+	/**
+	 * Number of offices visited by the delivered packages
+	 */
+	private final LatencyHistogram hopCounts = new LatencyHistogram();
+
+	/**
+	 * Counters of the packages
+	 */
+	private final AtomicLong sent = new AtomicLong(),
+			delivered = new AtomicLong(), lost = new AtomicLong(),
+			busy = new AtomicLong(), failed = new AtomicLong(),
+			late = new AtomicLong();
+
+	/**
+	 * Parses the command line
+	 *
+	 * @param args command line arguments
+	 */
+	private LoadGenerator(String[] args) {
+		if (args.length < 2) {
+			System.out.println("Usage: java LoadGenerator <host> <port> "
+					+ "[<option>=<value> ...]");
+			throw new IllegalArgumentException("Invalid number of arguments");
+		}
+		hostName = args[0];
+		portNumber = Integer.parseInt(args[1]);
+		for (int i = 2; i < args.length; i++) {
+			int index = args[i].indexOf('=');
+			if (index <= 0) {
+				throw new IllegalArgumentException("Invalid option: "
+						+ args[i]);
+			}
+			String name = args[i].substring(0, index);
+			String value = args[i].substring(index + 1);
+			if (name.equals("offices")) {
+				officeCount = Integer.parseInt(value);
+			} else if (name.equals("delay")) {
+				delay = Long.parseLong(value);
+			} else if (name.equals("rate")) {
+				rate = Double.parseDouble(value);
+			} else if (name.equals("duration")) {
+				duration = Long.parseLong(value);
+			} else if (name.equals("origins")) {
+				originCount = Integer.parseInt(value);
+			} else if (name.equals("destinations")) {
+				if (!value.equals("uniform") && !value.equals("hotspot")) {
+					throw new IllegalArgumentException(
+							"Invalid argument for destinations:" + value);
+				}
+				hotSpot = value.equals("hotspot");
+			} else if (name.equals("settle")) {
+				settle = Long.parseLong(value);
+			} else if (name.equals("results")) {
+				resultsFile = value;
+			} else if (name.equals("baseline")) {
+				baselineFile = value;
+			} else {
+				throw new IllegalArgumentException("Unknown option: " + name);
+			}
+		}
+		if (officeCount < 1 || originCount < 1 || originCount > officeCount
+				|| rate <= 0.0 || duration < 1) {
+			throw new IllegalArgumentException("Invalid options");
+		}
+	}
+
+	/**
+	 * Returns the progress of a package, created the first time
+	 *
+	 * @param trackNumber tracking number of the package
+	 * @return progress of the package
+	 */
+	private Trip tripOf(long trackNumber) {
+		Trip trip = trips.get(trackNumber);
+		if (trip == null) {
+			Trip created = new Trip();
+			trip = trips.putIfAbsent(trackNumber, created);
+			if (trip == null) {
+				trip = created;
+			}
+		}
+		return trip;
+	}
+
+	/**
+	 * Records the end to end latency of a delivered package once both its
+	 * due time and its delivery are known
+	 *
+	 * @param trackNumber tracking number of the package
+	 * @param trip progress of the package, locked by the caller
+	 */
+	private void finish(long trackNumber, Trip trip) {
+		if (trip.due >= 0 && trip.end >= 0) {
+			endToEnd.record(trip.end - trip.due);
+			hopCounts.record(trip.hops);
+			trips.remove(trackNumber);
+		}
+	}
+
+	/**
+	 * Records the time a package was due to be sent, once its send returned
+	 * its tracking number
+	 *
+	 * @param trackNumber tracking number of the package
+	 * @param due time in milliseconds the package was due
+	 */
+	private void recordDue(long trackNumber, long due) {
+		Trip trip = tripOf(trackNumber);
+		synchronized (trip) {
+			trip.due = due;
+			// the package may have been delivered before the send returned
+			finish(trackNumber, trip);
+		}
+	}
+
+	/**
+	 * Records an event of a package
+	 *
+	 * @param event event reported by an office
+	 */
+	private void record(PacketEvent event) {
+		Trip trip = tripOf(event.getTrackNumber());
+		synchronized (trip) {
+			switch (event.getStatus()) {
+			case ARRIVED:
+				if (trip.lastArrival >= 0) {
+					perHop.record(event.getTime() - trip.lastArrival);
+				}
+				trip.lastArrival = event.getTime();
+				trip.hops++;
+				break;
+			case DELIVERED:
+				trip.end = event.getTime();
+				delivered.incrementAndGet();
+				finish(event.getTrackNumber(), trip);
+				break;
+			case LOST:
+				lost.incrementAndGet();
+				trips.remove(event.getTrackNumber());
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Starts the network, sends the load and reports the results
+	 *
+	 * @throws Exception
+	 * 				Thrown if the network cannot be started
+	 */
+	private void run() throws Exception {
+		try {
+			new OfficeIndex(new String[] { hostName, "" + portNumber });
+		} catch (IllegalArgumentException e) {
+			// an index is already bound, the offices use it
+		}
+
+		int columns = (int) Math.ceil(Math.sqrt(officeCount));
+		final double side = columns * spacing;
+		List<GPSOffice> offices = new ArrayList<GPSOffice>(officeCount);
+		for (int i = 0; i < officeCount; i++) {
+			offices.add(new GPSOffice(new String[] { hostName,
+					"" + portNumber, "Load" + i, "" + (i % columns) * spacing,
+					"" + (i / columns) * spacing, "delay=" + delay }));
+		}
+		final List<GPSOfficeRef> origins = new ArrayList<GPSOfficeRef>();
+		for (int i = 0; i < originCount; i++) {
+			origins.add(offices.get(i * officeCount / originCount));
+		}
+
+		RemoteEventListener<PacketEvent> exported =
+			new RemoteEventListener<PacketEvent>() {
+			@Override
+			public void report(long theSequenceNumber, PacketEvent theEvent)
+					throws RemoteException {
+				record(theEvent);
+			}
+		};
+		UnicastRemoteObject.exportObject(exported, 0);
+		@SuppressWarnings("unchecked")
+		final RemoteEventListener<PacketEvent> listener =
+			(RemoteEventListener<PacketEvent>) RemoteObject.toStub(exported);
+
+		System.out.println(officeCount + " offices started, settling for "
+				+ settle + " ms");
+		Thread.sleep(settle);
+
+		// open loop, a package is due every interval whatever the answers
+		final Random random = new Random(seed);
+		final double[][] spots = new double[5][2];
+		for (double[] spot : spots) {
+			spot[0] = random.nextDouble() * side;
+			spot[1] = random.nextDouble() * side;
+		}
+		// a thread per send in flight, so that no send waits for the answer
+		// of an earlier one
+		ExecutorService senders = Executors.newCachedThreadPool();
+		final long interval = (long) (1e9 / rate);
+		long total = (long) (rate * duration);
+		final long begin = System.nanoTime();
+		final long beginMillis = System.currentTimeMillis();
+		for (long i = 0; i < total; i++) {
+			final long due = begin + i * interval;
+			long wait = due - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			final double x, y;
+			if (hotSpot && random.nextInt(10) < 8) {
+				double[] spot = spots[random.nextInt(spots.length)];
+				x = spot[0] + random.nextGaussian();
+				y = spot[1] + random.nextGaussian();
+			} else {
+				x = random.nextDouble() * side;
+				y = random.nextDouble() * side;
+			}
+			final GPSOfficeRef origin = origins.get((int) (i % originCount));
+			senders.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (System.nanoTime() - due > interval) {
+						late.incrementAndGet();
+					}
+					try {
+						long trackNumber = origin.createSendPacket(x, y,
+								listener);
+						recordDue(trackNumber, beginMillis + (due - begin)
+								/ 1000000);
+						sent.incrementAndGet();
+					} catch (OfficeBusyException e) {
+						busy.incrementAndGet();
+					} catch (RemoteException e) {
+						failed.incrementAndGet();
+					}
+				}
+			});
+		}
+		senders.shutdown();
+		senders.awaitTermination(drainTimeout, TimeUnit.MILLISECONDS);
+		double elapsed = (System.nanoTime() - begin) / 1e9;
+
+		long deadline = System.currentTimeMillis() + drainTimeout;
+		while (delivered.get() + lost.get() < sent.get()
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+		}
+		double drained = (System.nanoTime() - begin) / 1e9;
+		report(elapsed, drained);
+
+		for (GPSOffice office : offices) {
+			office.shutdownExecutors();
+		}
+		UnicastRemoteObject.unexportObject(exported, true);
+	}
+
+	/**
+	 * Prints the results and saves them if asked
+	 *
+	 * @param elapsed time in seconds during which packages were sent
+	 * @param drained time in seconds until the last package finished
+	 * @throws Exception
+	 */
+	private void report(double elapsed, double drained) throws Exception {
+		Map<String, Double> results = new LinkedHashMap<String, Double>();
+		results.put("sent", (double) sent.get());
+		results.put("delivered", (double) delivered.get());
+		results.put("lost", (double) lost.get());
+		results.put("busy", (double) busy.get());
+		results.put("failed", (double) failed.get());
+		results.put("late", (double) late.get());
+		results.put("unfinished", (double) (sent.get() - delivered.get() - lost
+				.get()));
+		results.put("offered per second", sent.get() / elapsed);
+		results.put("delivered per second", delivered.get() / drained);
+		for (int percentile : new int[] { 50, 90, 99 }) {
+			results.put("end to end ms p" + percentile, (double) endToEnd
+					.getPercentile(percentile));
+		}
+		results.put("end to end ms max", (double) endToEnd.getMax());
+		for (int percentile : new int[] { 50, 90, 99 }) {
+			results.put("per hop ms p" + percentile, (double) perHop
+					.getPercentile(percentile));
+		}
+		results.put("per hop ms max", (double) perHop.getMax());
+		results.put("hops p50", (double) hopCounts.getPercentile(50));
+		results.put("hops max", (double) hopCounts.getMax());
+
+		for (Map.Entry<String, Double> entry : results.entrySet()) {
+			System.out.printf("%-48s %12.1f%n", entry.getKey(), entry
+					.getValue());
+		}
+		if (resultsFile != null) {
+			MicroBenchmark.save(results, new File(resultsFile));
+		}
+		if (baselineFile != null) {
+			MicroBenchmark.compare(results, new File(baselineFile));
+		}
+	}
+
+	public static void main(String[] args) {
+		try {
+			new LoadGenerator(args).run();
+			System.exit(0);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+}
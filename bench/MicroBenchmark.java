@@ -0,0 +1,223 @@
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Class MicroBenchmark is a small harness for the benchmarks of the hot paths
+ * of the Geographic Package System. Each benchmark runs a number of warm up
+ * iterations followed by measured iterations of a fixed duration and reports
+ * the mean time per operation along with its standard deviation. Results can
+ * be saved to a file and compared against the results of an earlier run.
+ * 
+ * @author Shridhar Bhalekar
+ *
+ */
+public class MicroBenchmark {
+
+	/**
+	 * Operation measured by a benchmark
+	 */
+	public interface Task {
+
+		/**
+		 * Performs the operation once
+		 * 
+		 * @param index number of the invocation, usable to pick inputs
+		 * 
+		 * @return value derived from the result, consumed by the harness so
+		 * 			the operation is not optimized away
+		 * 
+		 * @throws Exception
+		 * 				Thrown if the operation fails
+		 */
+		public long run(int index) throws Exception;
+	}
+
+	/**
+	 * Number of warm up iterations
+	 */
+	private int warmupIterations;
+
+	/**
+	 * Number of measured iterations
+	 */
+	private int measureIterations;
+
+	/**
+	 * Duration of one iteration in milliseconds
+	 */
+	private long iterationTime;
+
+	/**
+	 * Mean time per operation in nanoseconds keyed by benchmark name
+	 */
+	private Map<String, Double> results;
+
+	/**
+	 * Sink which keeps the JIT from removing the measured work
+	 */
+	private long sink;
+
+	/**
+	 * Creates a new MicroBenchmark
+	 * 
+	 * @param warmupIterations number of warm up iterations
+	 * @param measureIterations number of measured iterations
+	 * @param iterationTime duration of one iteration in milliseconds
+	 */
+	public MicroBenchmark(int warmupIterations, int measureIterations,
+			long iterationTime) {
+		this.warmupIterations = warmupIterations;
+		this.measureIterations = measureIterations;
+		this.iterationTime = iterationTime;
+		this.results = new LinkedHashMap<String, Double>();
+	}
+
+	/**
+	 * Runs one iteration and returns the mean time per operation
+	 * 
+	 * @param task operation to be measured
+	 * @param batch number of operations performed per invocation of the task
+	 * @return time per operation in nanoseconds
+	 * @throws Exception
+	 */
+	private double iteration(Task task, int batch) throws Exception {
+		long deadline = System.nanoTime() + iterationTime * 1000000L;
+		long start = System.nanoTime();
+		long now = start;
+		int invocations = 0;
+		// check the clock every 64 invocations to keep its cost out
+		while (now < deadline) {
+			for (int i = 0; i < 64; i++) {
+				sink += task.run(invocations++);
+			}
+			now = System.nanoTime();
+		}
+		return (double) (now - start) / ((long) invocations * batch);
+	}
+
+	/**
+	 * Runs a benchmark and prints its result
+	 * 
+	 * @param name name of the benchmark
+	 * @param batch number of operations performed per invocation of the task
+	 * @param task operation to be measured
+	 * @return mean time per operation in nanoseconds
+	 * @throws Exception
+	 * 				Thrown if the operation fails
+	 */
+	public double run(String name, int batch, Task task) throws Exception {
+		for (int i = 0; i < warmupIterations; i++) {
+			iteration(task, batch);
+		}
+		double sum = 0.0;
+		double sumOfSquares = 0.0;
+		for (int i = 0; i < measureIterations; i++) {
+			double time = iteration(task, batch);
+			sum += time;
+			sumOfSquares += time * time;
+		}
+		double mean = sum / measureIterations;
+		double deviation = Math.sqrt(Math.max(0.0, sumOfSquares
+				/ measureIterations - mean * mean));
+		results.put(name, mean);
+		System.out.printf("%-48s %12.1f ns/op +- %8.1f%n", name, mean,
+				deviation);
+		return mean;
+	}
+
+	/**
+	 * Saves the results as lines of the form <name> <ns/op>
+	 * 
+	 * @param file file to be written
+	 * @throws IOException
+	 */
+	public void save(File file) throws IOException {
+		save(results, file);
+	}
+
+	/**
+	 * Prints the change of every result against a baseline saved earlier
+	 * 
+	 * @param file baseline results file
+	 * @throws IOException
+	 */
+	public void compare(File file) throws IOException {
+		compare(results, file);
+	}
+
+	/**
+	 * Saves results as lines of the form <name> <value>, shared by the 
+	 * benchmarks so that any run can be compared with compare
+	 * 
+	 * @param results values keyed by result name
+	 * @param file file to be written
+	 * @throws IOException
+	 */
+	public static void save(Map<String, Double> results, File file)
+			throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			for (Map.Entry<String, Double> entry : results.entrySet()) {
+				out.println(entry.getKey() + " " + entry.getValue());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Prints the change of results against a baseline saved earlier
+	 * 
+	 * @param results values keyed by result name
+	 * @param file baseline results file
+	 * @throws IOException
+	 */
+	public static void compare(Map<String, Double> results, File file)
+			throws IOException {
+		Map<String, Double> baseline = new LinkedHashMap<String, Double>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				int index = line.lastIndexOf(' ');
+				if (index > 0) {
+					baseline.put(line.substring(0, index), Double
+							.parseDouble(line.substring(index + 1)));
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		System.out.println();
+		System.out.println("Compared to " + file);
+		for (Map.Entry<String, Double> entry : results.entrySet()) {
+			Double before = baseline.get(entry.getKey());
+			if (before == null) {
+				System.out.printf("%-48s %12s%n", entry.getKey(), "new");
+			} else if (before == 0.0) {
+				System.out.printf("%-48s %12s%n", entry.getKey(), entry
+						.getValue() == 0.0 ? "same" : "was 0");
+			} else {
+				System.out.printf("%-48s %+11.1f %%%n", entry.getKey(),
+						(entry.getValue() - before) * 100.0 / before);
+			}
+		}
+	}
+
+	/**
+	 * Returns the sink so that the measured results stay observable
+	 * @return accumulated sink value
+	 */
+	public long getSink() {
+		return sink;
+	}
+}
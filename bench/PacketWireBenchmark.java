@@ -0,0 +1,210 @@
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.rmi.RemoteException;
+import java.rmi.server.RemoteObject;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.rit.ds.RemoteEventListener;
+
+/**
+ * Microbenchmark comparing the wire format of Packet with the default Java
+ * serialization format used before. For both formats it measures the bytes
+ * written and the time to serialize and deserialize a single packet, as sent
+ * by packetForward, and a batch of packets of one customer, as sent by 
+ * packetForwardBatch. The listener carried by the packets is a real exported
+ * stub so that its cost is part of the measurement.
+ * <p>
+ * The baseline is the old Packet class in bench/legacy, under its original 
+ * name so that its class descriptor has the size it had on the wire. To run 
+ * the benchmark compile it along with the other classes and compile the old 
+ * Packet class into the legacy directory, as done by bench.bat
+ * <p>
+ * Usage: java PacketWireBenchmark [<iterations>] [<batch size>]
+ * <p>
+ * 
+ * @author Shridhar Bhalekar
+ *
+ */
+public class PacketWireBenchmark {
+
+	/**
+	 * Directory holding the compiled copy of the Packet class as it was 
+	 * serialized before the custom wire format, used as the baseline
+	 */
+	private static final String legacyDirectory = "legacy";
+
+	/**
+	 * Class loader which defines the baseline Packet class from the legacy 
+	 * directory instead of asking its parent, so that both classes can be 
+	 * measured under the same name and with the same class descriptor the 
+	 * old format sent on the wire
+	 */
+	private static class LegacyLoader extends URLClassLoader {
+
+		private LegacyLoader(File directory, ClassLoader parent)
+				throws IOException {
+			super(new URL[] { directory.toURI().toURL() }, parent);
+		}
+
+		@Override
+		protected synchronized Class<?> loadClass(String name, boolean resolve)
+				throws ClassNotFoundException {
+			if (!"Packet".equals(name)) {
+				return super.loadClass(name, resolve);
+			}
+			Class<?> type = findLoadedClass(name);
+			if (type == null) {
+				type = findClass(name);
+			}
+			if (resolve) {
+				resolveClass(type);
+			}
+			return type;
+		}
+	}
+
+	/**
+	 * Sink which keeps the JIT from removing the measured work
+	 */
+	private static long sink;
+
+	/**
+	 * Serializes an object the way a single remote call would
+	 * 
+	 * @param object object to be serialized
+	 * @return serialized bytes
+	 * @throws IOException
+	 */
+	private static byte[] write(Object object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Deserializes an object written by write
+	 * 
+	 * @param data serialized bytes
+	 * @param loader class loader resolving the classes of the stream
+	 * @return deserialized object
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	private static Object read(byte[] data, final ClassLoader loader)
+			throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+				data)) {
+			@Override
+			protected Class<?> resolveClass(ObjectStreamClass desc)
+					throws IOException, ClassNotFoundException {
+				return Class.forName(desc.getName(), false, loader);
+			}
+		};
+		Object object = in.readObject();
+		in.close();
+		return object;
+	}
+
+	/**
+	 * Measures one format and prints bytes per packet along with the 
+	 * serialize and deserialize time per packet
+	 * 
+	 * @param label name of the measured case
+	 * @param object packet or list of packets to be measured
+	 * @param packets number of packets contained in the object
+	 * @param loader class loader of the measured Packet class
+	 * @param iterations number of measured iterations
+	 * @throws Exception
+	 */
+	private static void measure(String label, Object object, int packets,
+			ClassLoader loader, int iterations) throws Exception {
+		byte[] data = write(object);
+		// warm up both directions before measuring
+		for (int i = 0; i < iterations; i++) {
+			sink += write(object).length;
+			sink += read(data, loader).hashCode();
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			sink += write(object).length;
+		}
+		long writeTime = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			sink += read(data, loader).hashCode();
+		}
+		long readTime = System.nanoTime() - start;
+
+		double perPacket = (double) iterations * packets;
+		System.out.printf("%-26s %8.1f bytes %10.1f ns write %10.1f ns read%n",
+				label, (double) data.length / packets, writeTime / perPacket,
+				readTime / perPacket);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+
+		RemoteEventListener<PacketEvent> exported = 
+			new RemoteEventListener<PacketEvent>() {
+			@Override
+			public void report(long theSequenceNumber, PacketEvent theEvent)
+					throws RemoteException {
+			}
+		};
+		UnicastRemoteObject.exportObject(exported, 0);
+		@SuppressWarnings("unchecked")
+		RemoteEventListener<PacketEvent> listener = 
+			(RemoteEventListener<PacketEvent>) RemoteObject.toStub(exported);
+
+		ClassLoader loader = PacketWireBenchmark.class.getClassLoader();
+		LegacyLoader legacyLoader = new LegacyLoader(new File(
+				legacyDirectory), loader);
+		Constructor<?> legacyPacket = legacyLoader.loadClass("Packet")
+				.getConstructor(double.class, double.class, long.class,
+						RemoteEventListener.class);
+
+		List<Packet> packets = new ArrayList<Packet>(batchSize);
+		List<Object> legacyPackets = new ArrayList<Object>(batchSize);
+		long trackingNumber = System.currentTimeMillis();
+		for (int i = 0; i < batchSize; i++) {
+			packets.add(new Packet(10.0 + i, 100.0 - i, trackingNumber + i,
+					listener));
+			legacyPackets.add(legacyPacket.newInstance(10.0 + i, 100.0 - i,
+					trackingNumber + i, listener));
+		}
+
+		System.out.println("Per packet, " + iterations + " iterations, batch of "
+				+ batchSize);
+		measure("default single", legacyPackets.get(0), 1, legacyLoader,
+				iterations);
+		measure("externalizable single", packets.get(0), 1, loader,
+				iterations);
+		measure("default batch", legacyPackets, batchSize, legacyLoader,
+				iterations);
+		measure("externalizable batch", packets, batchSize, loader,
+				iterations);
+		legacyLoader.close();
+
+		UnicastRemoteObject.unexportObject(exported, true);
+		if (sink == 42) {
+			System.out.println();
+		}
+	}
+}
@@ -0,0 +1,407 @@
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.rmi.RemoteException;
+import java.rmi.server.RemoteObject;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import edu.rit.ds.RemoteEventListener;
+
+/**
+ * Benchmarks of the routing and event construction hot paths of GPSOffice.
+ * Offices are placed at random in a square whose area grows with the number
+ * of offices, so the density of the network stays the same for every office
+ * count. The benchmarked office is configured as a real office is: it 
+ * learns every office of the network but keeps only its default number of 
+ * nearest offices as neighbors, so getClosestOffice does the same work for 
+ * every office count. What grows with the office count is the routing 
+ * table, which covers the whole network and is followed by route, and the
+ * learning of the offices by addNewNeighbor. Two packet mixes are measured: destinations spread uniformly over
+ * the network and a hot spot mix where most packets go to a few places.
+ * 
+ * To run the benchmarks compile them along with the other classes
+ * <p>
+ * Usage: java RoutingBenchmark [<office counts>] [<results file>] [<baseline file>]
+ * <p>
+ * where <office counts> - comma separated office counts (default 7,100,1000)
+ * 		 <results file>  - file to which the results are saved
+ * 		 <baseline file> - results of an earlier run to compare against
+ * 
+ * @author Shridhar Bhalekar
+ *
+ */
+public class RoutingBenchmark {
+
+	/**
+	 * Number of packets of each mix, a power of two
+	 */
+	private static final int mixSize = 4096;
+
+	/**
+	 * Distance between neighboring offices on average
+	 */
+	private static final double spacing = 10.0;
+
+	/**
+	 * Seed of the random layouts, fixed so that runs are comparable
+	 */
+	private static final long seed = 20130405L;
+
+	/**
+	 * Creates detached offices at random places of the network
+	 * 
+	 * @param count number of offices
+	 * @param side side of the square covered by the network
+	 * @param random source of the coordinates
+	 * @return offices of the network
+	 */
+	private static List<GPSOffice> createOffices(int count, double side,
+			Random random) {
+		List<GPSOffice> offices = new ArrayList<GPSOffice>(count);
+		for (int i = 0; i < count; i++) {
+			GPSOffice office = new GPSOffice("Office" + i, random.nextDouble()
+					* side, random.nextDouble() * side);
+			// the neighbor offices only answer getters, no threads needed
+			office.shutdownExecutors();
+			offices.add(office);
+		}
+		return offices;
+	}
+
+	/**
+	 * Creates a mix of packets with uniformly spread destinations
+	 * 
+	 * @param side side of the square covered by the network
+	 * @param random source of the coordinates
+	 * @param listener customer listener of the packets
+	 * @return packets of the mix
+	 */
+	private static Packet[] uniformMix(double side, Random random,
+			RemoteEventListener<PacketEvent> listener) {
+		Packet[] packets = new Packet[mixSize];
+		for (int i = 0; i < mixSize; i++) {
+			packets[i] = new Packet(random.nextDouble() * side, random
+					.nextDouble()
+					* side, i, listener);
+		}
+		return packets;
+	}
+
+	/**
+	 * Creates a mix of packets where 80% go close to one of five hot spots
+	 * 
+	 * @param side side of the square covered by the network
+	 * @param random source of the coordinates
+	 * @param listener customer listener of the packets
+	 * @return packets of the mix
+	 */
+	private static Packet[] hotSpotMix(double side, Random random,
+			RemoteEventListener<PacketEvent> listener) {
+		double[][] spots = new double[5][2];
+		for (double[] spot : spots) {
+			spot[0] = random.nextDouble() * side;
+			spot[1] = random.nextDouble() * side;
+		}
+		Packet[] packets = new Packet[mixSize];
+		for (int i = 0; i < mixSize; i++) {
+			double x, y;
+			if (random.nextInt(10) < 8) {
+				double[] spot = spots[random.nextInt(spots.length)];
+				x = spot[0] + random.nextGaussian();
+				y = spot[1] + random.nextGaussian();
+			} else {
+				x = random.nextDouble() * side;
+				y = random.nextDouble() * side;
+			}
+			packets[i] = new Packet(x, y, i, listener);
+		}
+		return packets;
+	}
+
+	/**
+	 * Serializes an object the way a single remote call would
+	 * 
+	 * @param object object to be serialized
+	 * @return serialized bytes
+	 * @throws IOException
+	 */
+	private static byte[] write(Object object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Deserializes an object written by write
+	 * 
+	 * @param data serialized bytes
+	 * @return deserialized object
+	 * @throws Exception
+	 */
+	private static Object read(byte[] data) throws Exception {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+				data));
+		Object object = in.readObject();
+		in.close();
+		return object;
+	}
+
+	/**
+	 * Returns the names of a list of offices
+	 * 
+	 * @param offices descriptors of the offices
+	 * @return names of the offices
+	 */
+	private static List<String> namesOf(List<NeighborStorage> offices) {
+		List<String> names = new ArrayList<String>(offices.size());
+		for (NeighborStorage office : offices) {
+			names.add(office.getCity());
+		}
+		return names;
+	}
+
+	/**
+	 * Runs the routing benchmarks for one network size
+	 * 
+	 * @param bench benchmark harness
+	 * @param count number of offices
+	 * @param listener customer listener of the packets
+	 * @throws Exception
+	 */
+	private static void routing(MicroBenchmark bench, final int count,
+			RemoteEventListener<PacketEvent> listener) throws Exception {
+		Random random = new Random(seed + count);
+		double side = Math.sqrt(count) * spacing;
+		final List<GPSOffice> offices = createOffices(count, side, random);
+		// a default office which learns every office of the network but 
+		// keeps only its nearest ones as neighbors
+		final GPSOffice office = new GPSOffice("Bench", side / 2, side / 2);
+		office.shutdownExecutors();
+		for (GPSOffice neighbor : offices) {
+			office.addNewNeighbor(neighbor);
+		}
+		final int neighbors = office.getNeighbors().size();
+
+		// every office linked to as many nearest offices as the benchmarked
+		// one, the routing table covers the whole network
+		final SpatialGrid grid = new SpatialGrid(spacing);
+		for (GPSOffice neighbor : offices) {
+			grid.add(new NeighborStorage(neighbor, neighbor.getCity(),
+					neighbor.getXValue(), neighbor.getYValue()));
+		}
+		Map<String, NeighborStorage> nodes = 
+			new HashMap<String, NeighborStorage>();
+		Map<String, List<String>> edges = new HashMap<String, List<String>>();
+		for (GPSOffice neighbor : offices) {
+			NeighborStorage node = grid.get(neighbor.getCity());
+			nodes.put(node.getCity(), node);
+			List<String> names = new ArrayList<String>();
+			for (NeighborStorage adjacent : grid.nearest(node.getX(), node
+					.getY(), neighbors, node.getCity())) {
+				names.add(adjacent.getCity());
+			}
+			edges.put(node.getCity(), names);
+		}
+		edges.put(office.getCity(), namesOf(office.getNeighbors()));
+		final NeighborStorage self = office.getDescriptor();
+		final Map<String, NeighborStorage> graphNodes = nodes;
+		final Map<String, List<String>> graphEdges = edges;
+		final RoutingTable table = new RoutingTable(self, nodes, edges);
+		office.setRoutingTable(table);
+
+		final Packet[] uniform = uniformMix(side, random, listener);
+		final Packet[] hotSpot = hotSpotMix(side, random, listener);
+		String suffix = " offices=" + count;
+
+		bench.run("evaluateEucledian" + suffix, 1, new MicroBenchmark.Task() {
+			public long run(int index) {
+				Packet p = uniform[index & (mixSize - 1)];
+				return (long) office.evaluateEucledian(office.getXValue(), p
+						.getxValue(), office.getYValue(), p.getyValue());
+			}
+		});
+		bench.run("getClosestOffice uniform" + suffix, 1,
+				new MicroBenchmark.Task() {
+					public long run(int index) {
+						return office.getClosestOffice(
+								uniform[index & (mixSize - 1)]) == null ? 0 : 1;
+					}
+				});
+		bench.run("getClosestOffice hotspot" + suffix, 1,
+				new MicroBenchmark.Task() {
+					public long run(int index) {
+						return office.getClosestOffice(
+								hotSpot[index & (mixSize - 1)]) == null ? 0 : 1;
+					}
+				});
+		bench.run("route cached uniform" + suffix, 1,
+				new MicroBenchmark.Task() {
+					public long run(int index) {
+						return office.route(
+								uniform[index & (mixSize - 1)]) == null ? 0 : 1;
+					}
+				});
+		bench.run("route cached hotspot" + suffix, 1,
+				new MicroBenchmark.Task() {
+					public long run(int index) {
+						return office.route(
+								hotSpot[index & (mixSize - 1)]) == null ? 0 : 1;
+					}
+				});
+		System.out.println("next hop cache" + suffix + ": "
+				+ office.getCacheStatistics());
+		bench.run("addNewNeighbor" + suffix, 1, new MicroBenchmark.Task() {
+			public long run(int index) throws RemoteException {
+				office.addNewNeighbor(offices.get(index % count));
+				return index;
+			}
+		});
+
+		bench.run("SpatialGrid nearest 3" + suffix, 1,
+				new MicroBenchmark.Task() {
+					public long run(int index) {
+						Packet p = uniform[index & (mixSize - 1)];
+						return grid.nearest(p.getxValue(), p.getyValue(), 3,
+								null).size();
+					}
+				});
+
+		bench.run("RoutingTable build" + suffix, 1, new MicroBenchmark.Task() {
+			public long run(int index) {
+				return new RoutingTable(self, graphNodes, graphEdges).size();
+			}
+		});
+		bench.run("RoutingTable nextHop uniform" + suffix, 1,
+				new MicroBenchmark.Task() {
+					public long run(int index) {
+						Packet p = uniform[index & (mixSize - 1)];
+						String hop = table.nextHop(p.getxValue(), p.getyValue());
+						return hop == null ? 0 : hop.length();
+					}
+				});
+		office.shutdownExecutors();
+	}
+
+	/**
+	 * Runs the event construction and serialization benchmarks
+	 * 
+	 * @param bench benchmark harness
+	 * @param listener customer listener of the packets
+	 * @throws Exception
+	 */
+	private static void events(MicroBenchmark bench,
+			RemoteEventListener<PacketEvent> listener) throws Exception {
+		Random random = new Random(seed);
+		final GPSOffice office = new GPSOffice("Bench", 0, 0);
+		office.shutdownExecutors();
+		final Packet[] packets = uniformMix(100.0, random, listener);
+		final PacketEvent.Status[] statuses = PacketEvent.Status.values();
+
+		bench.run("createNewPacketEvent", 1, new MicroBenchmark.Task() {
+			public long run(int index) {
+				return office.createNewPacketEvent(
+						statuses[index % statuses.length],
+						packets[index & (mixSize - 1)], "Bench")
+						.getTrackNumber();
+			}
+		});
+		bench.run("PacketEvent getMessage", 1, new MicroBenchmark.Task() {
+			public long run(int index) {
+				return office.createNewPacketEvent(
+						statuses[index % statuses.length],
+						packets[index & (mixSize - 1)], "Bench").getMessage()
+						.length();
+			}
+		});
+
+		final Packet packet = packets[0];
+		final byte[] packetData = write(packet);
+		bench.run("Packet serialize", 1, new MicroBenchmark.Task() {
+			public long run(int index) throws Exception {
+				return write(packet).length;
+			}
+		});
+		bench.run("Packet deserialize", 1, new MicroBenchmark.Task() {
+			public long run(int index) throws Exception {
+				return ((Packet) read(packetData)).getTrackingNumber();
+			}
+		});
+
+		final List<Packet> batch = new ArrayList<Packet>();
+		for (int i = 0; i < 16; i++) {
+			batch.add(packets[i]);
+		}
+		final byte[] batchData = write(batch);
+		bench.run("Packet batch of 16 serialize", 16,
+				new MicroBenchmark.Task() {
+					public long run(int index) throws Exception {
+						return write(batch).length;
+					}
+				});
+		bench.run("Packet batch of 16 deserialize", 16,
+				new MicroBenchmark.Task() {
+					public long run(int index) throws Exception {
+						return ((List<?>) read(batchData)).size();
+					}
+				});
+
+		final PacketEvent event = office.createNewPacketEvent(
+				PacketEvent.Status.DELIVERED, packet, "Bench");
+		final byte[] eventData = write(event);
+		bench.run("PacketEvent serialize", 1, new MicroBenchmark.Task() {
+			public long run(int index) throws Exception {
+				return write(event).length;
+			}
+		});
+		bench.run("PacketEvent deserialize", 1, new MicroBenchmark.Task() {
+			public long run(int index) throws Exception {
+				return ((PacketEvent) read(eventData)).getTrackNumber();
+			}
+		});
+	}
+
+	public static void main(String[] args) throws Exception {
+		String counts = args.length > 0 ? args[0] : "7,100,1000";
+		MicroBenchmark bench = new MicroBenchmark(3, 5, 500);
+
+		RemoteEventListener<PacketEvent> exported = 
+			new RemoteEventListener<PacketEvent>() {
+			@Override
+			public void report(long theSequenceNumber, PacketEvent theEvent)
+					throws RemoteException {
+			}
+		};
+		UnicastRemoteObject.exportObject(exported, 0);
+		@SuppressWarnings("unchecked")
+		RemoteEventListener<PacketEvent> listener = 
+			(RemoteEventListener<PacketEvent>) RemoteObject.toStub(exported);
+
+		for (String count : counts.split(",")) {
+			routing(bench, Integer.parseInt(count.trim()), listener);
+		}
+		events(bench, listener);
+		UnicastRemoteObject.unexportObject(exported, true);
+
+		if (args.length > 1) {
+			bench.save(new File(args[1]));
+		}
+		if (args.length > 2) {
+			bench.compare(new File(args[2]));
+		}
+		if (bench.getSink() == 42) {
+			System.out.println();
+		}
+	}
+}
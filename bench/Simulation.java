@@ -0,0 +1,403 @@
+
+
+import java.io.File;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import edu.rit.ds.RemoteEventListener;
+
+/**
+ * In process simulation of the Geographic Package System. Offices, the
+ * headquarters and the customers run in this process without a registry and
+ * call each other through the same interfaces as on the network, but with
+ * direct calls instead of RMI. Every delay of the offices runs on the virtual
+ * clock of a SimulationScheduler which jumps from one task to the next, so
+ * the processing delay costs no real time and a run with the same options
+ * always gives the same results. It is meant to plan the capacity of large
+ * networks which cannot be started as one process per office.
+ *
+ * The offices are placed at random in a square and each one is given its
+ * nearest offices as neighbors. Packages are sent at a fixed rate of the
+ * virtual clock from offices chosen at random.
+ *
+ * Usage: java Simulation [<option>=<value> ...]
+ * <p>
+ * where the options are
+ * 		 offices=<n>     - number of offices of the network (default 1000)
+ * 		 rate=<n>        - packages sent per simulated second (default 1000)
+ * 		 duration=<s>    - simulated time during which packages are sent
+ * 		 				   (default 60)
+ * 		 destinations=uniform|hotspot - spread of the destinations, hotspot
+ * 		 				   sends 80% of the packages close to five places
+ * 		 				   (default uniform)
+ * 		 settle=<ms>     - simulated time given to the offices to build their
+ * 		 				   routing tables before the load starts (default 6000)
+ * 		 window=<s>      - window of the metrics of the headquarters
+ * 		 				   (default 60)
+ * 		 seed=<n>        - seed of the layout and the destinations
+ * 		 results=<file>  - file to which the results are saved
+ * 		 baseline=<file> - results of an earlier run to compare against
+ *
+ * Any other option, such as delay, capacity, neighbors or radius, is given
+ * to every office.
+ *
+ * @author Shridhar Bhalekar
+ *
+ */
+public class Simulation {
+
+	/**
+	 * Average distance between neighboring offices
+	 */
+	private static final double spacing = 10.0;
+
+	/**
+	 * Simulated time in milliseconds given to the packages in flight to
+	 * finish once the sending stopped
+	 */
+	private static final long drainTimeout = 600000;
+
+	/**
+	 * Simulated time in milliseconds between two progress reports
+	 */
+	private static final long reportInterval = 10000;
+
+	/**
+	 * Progress of a package, updated from its events
+	 */
+	private static final class Trip {
+
+		/**
+		 * Simulated time in milliseconds of the arrival at the origin office
+		 */
+		private long start;
+
+		/**
+		 * Number of offices the package arrived at
+		 */
+		private int hops;
+	}
+
+	/**
+	 * Number of offices of the network
+	 */
+	private int officeCount = 1000;
+
+	/**
+	 * Packages sent per simulated second
+	 */
+	private double rate = 1000;
+
+	/**
+	 * Simulated time in seconds during which packages are sent
+	 */
+	private long duration = 60;
+
+	/**
+	 * True if most destinations are close to a few hot spots
+	 */
+	private boolean hotSpot = false;
+
+	/**
+	 * Simulated time in milliseconds before the load starts
+	 */
+	private long settle = 6000;
+
+	/**
+	 * Window in seconds of the metrics of the headquarters
+	 */
+	private int window = 60;
+
+	/**
+	 * Seed of the layout and of the destinations
+	 */
+	private long seed = 20130405L;
+
+	/**
+	 * Files of the results and of the baseline, null if not given
+	 */
+	private String resultsFile;
+
+	private String baselineFile;
+
+	/**
+	 * Options given to every office
+	 */
+	private final List<String> officeOptions = new ArrayList<String>();
+
+	/**
+	 * Scheduler running the whole network on its virtual clock
+	 */
+	private final SimulationScheduler simulation = new SimulationScheduler();
+
+	/**
+	 * Packages on their way keyed by tracking number. The simulation runs on
+	 * a single thread, so no locking is needed.
+	 */
+	private final Map<Long, Trip> trips = new HashMap<Long, Trip>();
+
+	/**
+	 * Latencies in milliseconds from the arrival at the origin to the
+	 * delivery
+	 */
+	private final LatencyHistogram endToEnd = new LatencyHistogram();
+
+	/**
+	 * Number of offices visited by the delivered packages
+	 */
+	private final LatencyHistogram hopCounts = new LatencyHistogram();
+
+	/**
+	 * Counters of the packages
+	 */
+	private long sent, delivered, lost, busy;
+
+	/**
+	 * Parses the command line
+	 *
+	 * @param args command line arguments
+	 */
+	private Simulation(String[] args) {
+		for (String arg : args) {
+			int index = arg.indexOf('=');
+			if (index <= 0) {
+				throw new IllegalArgumentException("Invalid option: " + arg);
+			}
+			String name = arg.substring(0, index);
+			String value = arg.substring(index + 1);
+			if (name.equals("offices")) {
+				officeCount = Integer.parseInt(value);
+			} else if (name.equals("rate")) {
+				rate = Double.parseDouble(value);
+			} else if (name.equals("duration")) {
+				duration = Long.parseLong(value);
+			} else if (name.equals("destinations")) {
+				if (!value.equals("uniform") && !value.equals("hotspot")) {
+					throw new IllegalArgumentException(
+							"Invalid argument for destinations:" + value);
+				}
+				hotSpot = value.equals("hotspot");
+			} else if (name.equals("settle")) {
+				settle = Long.parseLong(value);
+			} else if (name.equals("window")) {
+				window = Integer.parseInt(value);
+			} else if (name.equals("seed")) {
+				seed = Long.parseLong(value);
+			} else if (name.equals("results")) {
+				resultsFile = value;
+			} else if (name.equals("baseline")) {
+				baselineFile = value;
+			} else {
+				officeOptions.add(arg);
+			}
+		}
+		if (officeCount < 1 || officeCount > 1000000 || rate <= 0.0
+				|| duration < 1 || settle < 0 || window < 1) {
+			throw new IllegalArgumentException("Invalid options");
+		}
+	}
+
+	/**
+	 * Records an event of a package
+	 *
+	 * @param event event reported by an office
+	 */
+	private void record(PacketEvent event) {
+		Trip trip = trips.get(event.getTrackNumber());
+		if (trip == null) {
+			// the first event of a package is its arrival at the origin
+			trip = new Trip();
+			trip.start = event.getTime();
+			trips.put(event.getTrackNumber(), trip);
+		}
+		switch (event.getStatus()) {
+		case ARRIVED:
+			trip.hops++;
+			break;
+		case DELIVERED:
+			endToEnd.record(event.getTime() - trip.start);
+			hopCounts.record(trip.hops);
+			delivered++;
+			trips.remove(event.getTrackNumber());
+			break;
+		case LOST:
+			lost++;
+			trips.remove(event.getTrackNumber());
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Builds the network, runs the load on the virtual clock and reports the
+	 * results
+	 *
+	 * @throws Exception
+	 * 				Thrown if the results cannot be saved
+	 */
+	private void run() throws Exception {
+		long begin = System.nanoTime();
+		final Random random = new Random(seed);
+		final double side = Math.sqrt(officeCount) * spacing;
+		String[] options = officeOptions.toArray(new String[0]);
+		final List<GPSOffice> offices = new ArrayList<GPSOffice>(officeCount);
+		SpatialGrid grid = new SpatialGrid(spacing);
+		// offices of the same tracking prefix would share tracking numbers
+		Set<Long> prefixes = new HashSet<Long>();
+		for (int i = 0; i < officeCount; i++) {
+			String city = "Sim" + i;
+			for (int retry = 1; !prefixes.add(GPSOffice
+					.trackingPrefix(city)); retry++) {
+				city = "Sim" + i + "-" + retry;
+			}
+			GPSOffice office = new GPSOffice(city, random.nextDouble() * side,
+					random.nextDouble() * side, options, simulation);
+			offices.add(office);
+			grid.add(office.getDescriptor());
+		}
+
+		// each office knows its nearest offices, as given by the index
+		Headquarters headquarters = new Headquarters(simulation);
+		for (GPSOffice office : offices) {
+			office.updateNeighbors(grid);
+			office.addLocalListener(headquarters.getListener());
+		}
+		double built = (System.nanoTime() - begin) / 1e9;
+		System.out.printf("%d offices built in %.1f s%n", officeCount, built);
+
+		final RemoteEventListener<PacketEvent> customer =
+			new RemoteEventListener<PacketEvent>() {
+			@Override
+			public void report(long theSequenceNumber, PacketEvent theEvent) {
+				record(theEvent);
+			}
+		};
+
+		// open loop, the packages due in each millisecond are sent at once
+		final double[][] spots = new double[5][2];
+		for (double[] spot : spots) {
+			spot[0] = random.nextDouble() * side;
+			spot[1] = random.nextDouble() * side;
+		}
+		final long total = (long) (rate * duration);
+		final double perMillisecond = rate / 1000.0;
+		final ScheduledFuture<?>[] sender = new ScheduledFuture<?>[1];
+		sender[0] = simulation.scheduleAtFixedRate(new Runnable() {
+
+			private double due;
+
+			@Override
+			public void run() {
+				due += perMillisecond;
+				while (due >= 1.0 && sent + busy < total) {
+					due -= 1.0;
+					double x, y;
+					if (hotSpot && random.nextInt(10) < 8) {
+						double[] spot = spots[random.nextInt(spots.length)];
+						x = spot[0] + random.nextGaussian();
+						y = spot[1] + random.nextGaussian();
+					} else {
+						x = random.nextDouble() * side;
+						y = random.nextDouble() * side;
+					}
+					GPSOfficeRef origin = offices.get(random
+							.nextInt(offices.size()));
+					try {
+						origin.createSendPacket(x, y, customer);
+						sent++;
+					} catch (OfficeBusyException e) {
+						busy++;
+					} catch (RemoteException e) {
+						// offices of the same process fail only on the journal
+						e.printStackTrace();
+						busy++;
+					}
+				}
+				if (sent + busy >= total) {
+					sender[0].cancel(false);
+				}
+			}
+		}, settle, 1, TimeUnit.MILLISECONDS);
+
+		long start = System.nanoTime();
+		long deadline = settle + duration * 1000 + drainTimeout;
+		long now = 0;
+		while ((sent + busy < total || delivered + lost < sent)
+				&& now < deadline) {
+			now += reportInterval;
+			simulation.runUntil(now);
+			System.out.printf("t=%ds sent=%d delivered=%d lost=%d "
+					+ "busy=%d in flight=%d%n", now / 1000, sent, delivered,
+					lost, busy, sent - delivered - lost);
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		report(simulation.currentTimeMillis() - settle, elapsed, headquarters
+				.getStatistics(Math.min(window, (int) (now / 1000))));
+		simulation.shutdownNow();
+	}
+
+	/**
+	 * Prints the results and saves them if asked
+	 *
+	 * @param simulated simulated time in milliseconds since the load started
+	 * @param elapsed real time in seconds the simulation took
+	 * @param statistics metrics of the headquarters
+	 * @throws Exception
+	 */
+	private void report(long simulated, double elapsed,
+			NetworkStatistics statistics) throws Exception {
+		Map<String, Double> results = new LinkedHashMap<String, Double>();
+		results.put("sent", (double) sent);
+		results.put("delivered", (double) delivered);
+		results.put("lost", (double) lost);
+		results.put("busy", (double) busy);
+		results.put("unfinished", (double) (sent - delivered - lost));
+		results.put("simulated seconds", simulated / 1000.0);
+		results.put("delivered per simulated second", delivered * 1000.0
+				/ simulated);
+		for (int percentile : new int[] { 50, 90, 99 }) {
+			results.put("end to end ms p" + percentile, (double) endToEnd
+					.getPercentile(percentile));
+		}
+		results.put("end to end ms max", (double) endToEnd.getMax());
+		results.put("hops p50", (double) hopCounts.getPercentile(50));
+		results.put("hops max", (double) hopCounts.getMax());
+		results.put("headquarters window deliveries per second", statistics
+				.getDeliveriesPerSecond());
+		results.put("headquarters window latency ms p99", (double) statistics
+				.getLatency(99));
+
+		for (Map.Entry<String, Double> entry : results.entrySet()) {
+			System.out.printf("%-48s %12.1f%n", entry.getKey(), entry
+					.getValue());
+		}
+		System.out.printf("%d tasks run in %.1f s, %.0f simulated seconds "
+				+ "per second%n", simulation.getExecuted(), elapsed,
+				simulated / 1000.0 / elapsed);
+		if (resultsFile != null) {
+			MicroBenchmark.save(results, new File(resultsFile));
+		}
+		if (baselineFile != null) {
+			MicroBenchmark.compare(results, new File(baselineFile));
+		}
+	}
+
+	public static void main(String[] args) {
+		try {
+			new Simulation(args).run();
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+}
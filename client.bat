@@ -1,10 +1,12 @@
 @echo off
 
-START java Start GPSOffice %1 %2 Mumbai 10 20
+START java Start OfficeIndex %1 %2
 
-START java Start GPSOffice %1 %2 Pune 10 30
-START java Start GPSOffice %1 %2 Nagpur 10 40
-START java Start GPSOffice %1 %2 Goa 10 50
-START java Start GPSOffice %1 %2 Chennai 10 60
-START java Start GPSOffice %1 %2 Delhi 10 70
-START java Start GPSOffice %1 %2 Kolkata 10 80
+START java -Dsun.rmi.transport.tcp.responseTimeout=5000 Start GPSOffice %1 %2 Mumbai 10 20
+
+START java -Dsun.rmi.transport.tcp.responseTimeout=5000 Start GPSOffice %1 %2 Pune 10 30
+START java -Dsun.rmi.transport.tcp.responseTimeout=5000 Start GPSOffice %1 %2 Nagpur 10 40
+START java -Dsun.rmi.transport.tcp.responseTimeout=5000 Start GPSOffice %1 %2 Goa 10 50
+START java -Dsun.rmi.transport.tcp.responseTimeout=5000 Start GPSOffice %1 %2 Chennai 10 60
+START java -Dsun.rmi.transport.tcp.responseTimeout=5000 Start GPSOffice %1 %2 Delhi 10 70
+START java -Dsun.rmi.transport.tcp.responseTimeout=5000 Start GPSOffice %1 %2 Kolkata 10 80
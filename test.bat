@@ -1,4 +1,4 @@
 
 @echo off
 
-for /l %%x in (1,1,50) do START java Customer localhost 2000 Pune 10 100
\ No newline at end of file
+(for /l %%x in (1,1,50) do @echo 10 100) | java Customer localhost 2000 Pune - 50